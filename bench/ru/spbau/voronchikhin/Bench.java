@@ -0,0 +1,100 @@
+package ru.spbau.voronchikhin;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Minimal benchmark harness: timed warm-up and measurement iterations, results are printed
+ * and optionally appended to a CSV file so runs can be compared over time.
+ */
+public class Bench {
+    /**
+     * One benchmarked operation, the result is consumed so the JIT can not drop the work.
+     */
+    public interface Op {
+        long run() throws Exception;
+    }
+
+    private final String filter;
+    private final String resultsFile;
+    private final String label;
+    private final long iterationMillis;
+    private final int warmupIterations;
+    private final int iterations;
+    private long sink = 0;
+
+    public Bench(String filter, String resultsFile, String label, long iterationMillis, int warmupIterations, int iterations) {
+        this.filter = filter;
+        this.resultsFile = resultsFile;
+        this.label = label;
+        this.iterationMillis = iterationMillis;
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        System.out.println(String.format("%-40s %-10s %14s %10s %14s", "benchmark", "param", "ns/op", "+-%", "ops/s"));
+    }
+
+    public boolean enabled(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    public void measure(String name, Object param, Op op) throws Exception {
+        if (!enabled(name)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; ++i) {
+            iteration(op);
+        }
+        double[] nanosPerOp = new double[iterations];
+        double mean = 0;
+        for (int i = 0; i < iterations; ++i) {
+            nanosPerOp[i] = iteration(op);
+            mean += nanosPerOp[i] / iterations;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        }
+        double error = mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean;
+        report(name, String.valueOf(param), mean, error);
+    }
+
+    /**
+     * Reports a throughput measured by the benchmark itself.
+     */
+    public void report(String name, Object param, long operations, long nanos) throws IOException {
+        report(name, String.valueOf(param), (double) nanos / Math.max(1, operations), 0);
+    }
+
+    private double iteration(Op op) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1000000;
+        long now;
+        do {
+            for (int i = 0; i < 16; ++i) {
+                sink += op.run();
+            }
+            operations += 16;
+        } while ((now = System.nanoTime()) < deadline);
+        return (double) (now - start) / operations;
+    }
+
+    private void report(String name, String param, double nanosPerOp, double error) throws IOException {
+        double opsPerSecond = nanosPerOp == 0 ? 0 : 1e9 / nanosPerOp;
+        System.out.println(String.format("%-40s %-10s %14.1f %10.1f %14.0f", name, param, nanosPerOp, error, opsPerSecond));
+        if (resultsFile != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(resultsFile, true))) {
+                out.println(String.format("%s,%s,%s,%s,%.1f,%.1f,%.0f",
+                        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()),
+                        label, name, param, nanosPerOp, error, opsPerSecond));
+            }
+        }
+    }
+
+    public long getSink() {
+        return sink;
+    }
+}
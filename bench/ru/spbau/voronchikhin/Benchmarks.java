@@ -0,0 +1,292 @@
+package ru.spbau.voronchikhin;
+
+import ru.spbau.goncharova.task3.Client;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the server hot paths.
+ * Usage: Benchmarks [filter [results.csv [label]]], e.g.
+ * {@code java -cp out:lib/json-simple-1.1.1.jar ru.spbau.voronchikhin.Benchmarks codec results.csv master}
+ */
+public class Benchmarks {
+    private static final int[] PAYLOAD_SIZES = {16, 1024, 65536};
+    private static final int[] CONNECTIONS = {1, 8, 64};
+    private static final long LOOPBACK_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 && !args[0].equals("all") ? args[0] : null;
+        String resultsFile = args.length > 1 ? args[1] : null;
+        String label = args.length > 2 ? args[2] : "";
+        Bench bench = new Bench(filter, resultsFile, label, 1000, 5, 5);
+        processor(bench);
+        codec(bench);
+        reverse(bench);
+        decoder(bench);
+        filterMean(bench);
+        loopback(bench);
+        System.out.println("sink " + bench.getSink());
+    }
+
+    static String payload(int size) {
+        Random random = new Random(size);
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) {
+            builder.append(random.nextBoolean() ? '1' : '0');
+        }
+        return builder.toString();
+    }
+
+    static String request(int size) {
+        return "{\"data\":\"" + payload(size) + "\"}";
+    }
+
+    private static void processor(Bench bench) throws Exception {
+        final BufferPool pool = new BufferPool();
+        for (int size : PAYLOAD_SIZES) {
+            final String request = request(size);
+            bench.measure("processor.construct", size, new Bench.Op() {
+                @Override
+                public long run() {
+                    return new InputProcessor(request).data.length();
+                }
+            });
+            final InputProcessor processor = new InputProcessor(request);
+            bench.measure("processor.getResponse", size, new Bench.Op() {
+                @Override
+                public long run() throws IOException {
+                    return processor.getResponse().remaining();
+                }
+            });
+            final ByteBuffer frame = ByteBuffer.allocateDirect(request.length());
+            frame.put(request.getBytes(StandardCharsets.UTF_8)).flip();
+            bench.measure("processor.respond", size, new Bench.Op() {
+                @Override
+                public long run() throws IOException {
+                    ByteBuffer output = InputProcessor.respond(frame, pool);
+                    int length = output.remaining();
+                    pool.release(output);
+                    return length;
+                }
+            });
+        }
+    }
+
+    /**
+     * Response serialization without the fib() work: byte codec against json-simple.
+     */
+    private static void codec(Bench bench) throws Exception {
+        final JsonCodec codec = new JsonCodec();
+        for (int size : PAYLOAD_SIZES) {
+            final String request = request(size);
+            final ByteBuffer frame = ByteBuffer.allocateDirect(request.length());
+            frame.put(request.getBytes(StandardCharsets.UTF_8)).flip();
+            final ByteBuffer output = ByteBuffer.allocateDirect(codec.parse(frame));
+            bench.measure("codec.parseAndWrite", size, new Bench.Op() {
+                @Override
+                public long run() {
+                    codec.parse(frame);
+                    output.clear();
+                    codec.writeResponse(output);
+                    return output.position();
+                }
+            });
+            final String data = payload(size);
+            bench.measure("codec.jsonSimpleWrite", size, new Bench.Op() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public long run() throws IOException {
+                    org.json.simple.JSONObject object = new org.json.simple.JSONObject();
+                    object.put("data", new StringBuilder(data).reverse().toString());
+                    object.put("status", true);
+                    StringWriter out = new StringWriter();
+                    object.writeJSONString(out);
+                    return (out.toString() + "\n").getBytes().length;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sequential against fork/join reversal of the data string, the sizes where the parallel one starts
+     * to win give {@link ParallelReverse#DEFAULT_THRESHOLD} for the machine. The same for the UTF-8 bytes
+     * of a whole request written by {@link JsonCodec}, which cuts the data into windows while it parses,
+     * for {@link ParallelReverse#DEFAULT_BYTE_THRESHOLD}.
+     */
+    private static void reverse(Bench bench) throws Exception {
+        for (int size = 1 << 12; size <= 1 << 22; size <<= 2) {
+            final String data = payload(size);
+            bench.measure("reverse.sequential", size, new Bench.Op() {
+                @Override
+                public long run() {
+                    return new StringBuilder(data).reverse().length();
+                }
+            });
+            bench.measure("reverse.forkJoin", size, new Bench.Op() {
+                @Override
+                public long run() {
+                    return ParallelReverse.reverseParallel(data).length();
+                }
+            });
+        }
+        final int threshold = ParallelReverse.getByteThreshold();
+        final JsonCodec codec = new JsonCodec();
+        for (int size = 1 << 16; size <= 1 << 22; size <<= 1) {
+            final String request = request(size);
+            final ByteBuffer frame = ByteBuffer.allocateDirect(request.length());
+            frame.put(request.getBytes(StandardCharsets.UTF_8)).flip();
+            final ByteBuffer output = ByteBuffer.allocateDirect(codec.parse(frame));
+            Bench.Op op = new Bench.Op() {
+                @Override
+                public long run() {
+                    codec.parse(frame);
+                    output.clear();
+                    codec.writeResponse(output);
+                    return output.position();
+                }
+            };
+            ParallelReverse.setByteThreshold(Integer.MAX_VALUE);
+            bench.measure("reverse.codecSequential", size, op);
+            ParallelReverse.setByteThreshold(0);
+            bench.measure("reverse.codecForkJoin", size, op);
+        }
+        ParallelReverse.setByteThreshold(threshold);
+    }
+
+    /**
+     * Frame accumulation and delimiter detection: one big frame in 8K reads and many small frames per read.
+     */
+    private static void decoder(Bench bench) throws Exception {
+        final BufferPool pool = new BufferPool();
+        for (int size : PAYLOAD_SIZES) {
+            final byte[] frame = (request(size) + "endl").getBytes(StandardCharsets.UTF_8);
+            final FrameDecoder decoder = new FrameDecoder(pool, Integer.MAX_VALUE);
+            bench.measure("decoder.chunked8k", size, new Bench.Op() {
+                @Override
+                public long run() {
+                    long total = 0;
+                    int offset = 0;
+                    while (offset < frame.length) {
+                        ByteBuffer target = decoder.readBuffer();
+                        int length = Math.min(Math.min(8192, target.remaining()), frame.length - offset);
+                        target.put(frame, offset, length);
+                        offset += length;
+                        ByteBuffer result;
+                        while ((result = decoder.nextFrame()) != null) {
+                            total += result.remaining();
+                            pool.release(result);
+                        }
+                    }
+                    return total;
+                }
+            });
+        }
+        final byte[] small = (request(16) + "endl").getBytes(StandardCharsets.UTF_8);
+        final int perRead = 8192 / small.length;
+        final FrameDecoder decoder = new FrameDecoder(pool, Integer.MAX_VALUE);
+        bench.measure("decoder.pipelined", perRead + "x16", new Bench.Op() {
+            @Override
+            public long run() {
+                ByteBuffer target = decoder.readBuffer();
+                for (int i = 0; i < perRead && target.remaining() >= small.length; ++i) {
+                    target.put(small);
+                }
+                long total = 0;
+                ByteBuffer result;
+                while ((result = decoder.nextFrame()) != null) {
+                    total += result.remaining();
+                    pool.release(result);
+                }
+                return total;
+            }
+        });
+    }
+
+    private static void filterMean(Bench bench) throws Exception {
+        Random random = new Random(1);
+        final List<Long> times = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            times.add((long) (1000000 + random.nextGaussian() * 100000));
+        }
+        bench.measure("client.filterMean", times.size(), new Bench.Op() {
+            @Override
+            public long run() {
+                return Client.filterMean(times);
+            }
+        });
+    }
+
+    /**
+     * Request/response throughput of an in-process {@link Server} over loopback, ns/op is per request.
+     */
+    private static void loopback(Bench bench) throws Exception {
+        if (!bench.enabled("loopback")) {
+            return;
+        }
+        final int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final Server server = new Server(port);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        }, "loopback-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+        final byte[] request = (request(64) + "endl").getBytes(StandardCharsets.UTF_8);
+        for (int connections : CONNECTIONS) {
+            ExecutorService clients = Executors.newFixedThreadPool(connections);
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicLong requests = new AtomicLong();
+            final CountDownLatch started = new CountDownLatch(connections);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < connections; ++i) {
+                results.add(clients.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (Socket socket = new Socket("localhost", port)) {
+                            socket.setTcpNoDelay(true);
+                            OutputStream out = socket.getOutputStream();
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            started.countDown();
+                            while (running.get()) {
+                                out.write(request);
+                                out.flush();
+                                in.readLine();
+                                requests.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            started.await();
+            Thread.sleep(LOOPBACK_MILLIS / 3);
+            long before = requests.get();
+            long start = System.nanoTime();
+            Thread.sleep(LOOPBACK_MILLIS);
+            long done = requests.get() - before;
+            long elapsed = System.nanoTime() - start;
+            running.set(false);
+            for (Future<?> result : results) {
+                result.get();
+            }
+            clients.shutdown();
+            bench.report("loopback.requestResponse", connections, done, elapsed);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ru.spbau.voronchikhin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH counterpart of the processor and codec cases of {@code Benchmarks}: the json-simple path,
+ * fib() included, and the byte level codec on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+    @Param({"16", "1024", "65536"})
+    int size;
+
+    private InputProcessor processor;
+    private final JsonCodec codec = new JsonCodec();
+    private ByteBuffer frame;
+    private ByteBuffer output;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(size);
+        StringBuilder request = new StringBuilder("{\"data\":\"");
+        for (int i = 0; i < size; ++i) {
+            request.append(random.nextBoolean() ? '1' : '0');
+        }
+        request.append("\"}");
+        processor = new InputProcessor(request.toString());
+        byte[] bytes = request.toString().getBytes(StandardCharsets.UTF_8);
+        frame = ByteBuffer.allocateDirect(bytes.length);
+        frame.put(bytes).flip();
+        output = ByteBuffer.allocateDirect(codec.parse(frame));
+    }
+
+    @Benchmark
+    public ByteBuffer getResponse() throws IOException {
+        return processor.getResponse();
+    }
+
+    @Benchmark
+    public ByteBuffer parseAndWrite() {
+        codec.parse(frame);
+        output.clear();
+        codec.writeResponse(output);
+        return output;
+    }
+}
@@ -1,8 +1,13 @@
 package ru.spbau.goncharova.task3;
 
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -11,22 +16,107 @@ public class Client {
 
     protected final BufferedReader reader;
     protected final BufferedWriter writer;
+    protected final DataInputStream binaryReader;
+    protected final BufferedOutputStream binaryWriter;
+    protected final boolean binary;
 
     public static final String dataId = "data";
     public static final String statusId = "status";
+    public static final int BINARY_MAGIC = 0xB1;
+    public static final int OP_REVERSE = 1;
     protected static final Random rand = new Random(System.currentTimeMillis());
     protected final int messageSize;
     protected final int messageCount;
     protected final Socket socket;
 
     public Client(String ipAddr, int port, int messageSize, int messageCount) throws IOException {
+        this(ipAddr, port, messageSize, messageCount, false);
+    }
+
+    /**
+     * @param binary speak the length-prefixed binary protocol instead of JSON with "endl"
+     */
+    public Client(String ipAddr, int port, int messageSize, int messageCount, boolean binary) throws IOException {
         InetAddress address = InetAddress.getByName(ipAddr);
         //connect socket
         socket = new Socket(address, port);
         reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        binaryReader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        binaryWriter = new BufferedOutputStream(socket.getOutputStream());
         this.messageSize = messageSize;
         this.messageCount = messageCount;
+        this.binary = binary;
+        if (binary) {
+            //the first byte selects the protocol, it goes out with the first request
+            binaryWriter.write(BINARY_MAGIC);
+        }
+    }
+
+    /**
+     * Buffers one request, {@link #flush} sends it.
+     */
+    protected void send(String message) throws IOException {
+        if (binary) {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            int length = payload.length;
+            while ((length & ~0x7F) != 0) {
+                binaryWriter.write((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            binaryWriter.write(length);
+            binaryWriter.write(OP_REVERSE);
+            binaryWriter.write(payload);
+        } else {
+            JSONObject object = new JSONObject();
+            object.put(dataId, message);
+            writer.write(object.toJSONString() + "endl");
+        }
+    }
+
+    protected void flush() throws IOException {
+        if (binary) {
+            binaryWriter.flush();
+        } else {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Reads the next response.
+     *
+     * @param sentAt time the request was sent at, the response time is measured from it
+     * @return the response or null if the server closed the connection
+     */
+    protected ProcessingResult receive(long sentAt) throws IOException, ParseException {
+        if (binary) {
+            int status = binaryReader.read();
+            if (status < 0) {
+                return null;
+            }
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = binaryReader.readUnsignedByte();
+                length |= (b & 0x7F) << shift;
+                if (b < 0x80) {
+                    break;
+                }
+            }
+            binaryReader.readFully(new byte[length]);
+            return new ProcessingResult(status == 0, System.nanoTime() - sentAt);
+        }
+        String responseString = reader.readLine();
+        if (responseString == null) {
+            return null;
+        }
+        long responseTime = System.nanoTime() - sentAt;
+        try {
+            JSONObject response = (JSONObject) new JSONParser().parse(responseString);
+            return new ProcessingResult(response, responseTime);
+        } catch (ParseException e) {
+            System.err.println("ParseException when trying to parse JSON response from server " + responseString);
+            throw e;
+        }
     }
 
     public String generateMessage() {
@@ -0,0 +1,435 @@
+package ru.spbau.goncharova.task3;
+
+import org.json.simple.JSONObject;
+import ru.spbau.voronchikhin.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open-loop load generator: a few selector threads drive many connections at a fixed total request rate.
+ * Every connection sends on its own fixed schedule whether or not the previous responses have arrived,
+ * and latency is measured from the time a request was due to be sent, not from the time it was written,
+ * so a stalled server shows up in the percentiles instead of silently lowering the request rate
+ * (coordinated omission). Speaks either the JSON protocol or the length-prefixed binary one.
+ */
+public class LoadGenerator {
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int TRUE_TAIL = ('r' << 24) | ('u' << 16) | ('e' << 8) | '}';
+
+    private final InetSocketAddress address;
+    private final int connectionCount;
+    private final double rate;
+    private final long durationNanos;
+    private final int messageSize;
+    private final int selectorCount;
+    private final boolean binary;
+    private final Histogram latency = new Histogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public LoadGenerator(String ipAddress, int port, int connectionCount, double rate, long durationNanos,
+                         int messageSize, int selectorCount, boolean binary) {
+        this.address = new InetSocketAddress(ipAddress, port);
+        this.connectionCount = connectionCount;
+        this.rate = rate;
+        this.durationNanos = durationNanos;
+        this.messageSize = messageSize;
+        this.selectorCount = Math.max(1, Math.min(selectorCount, connectionCount));
+        this.binary = binary;
+    }
+
+    /**
+     * Connects, runs the load for the configured duration and waits a bit for late responses.
+     *
+     * @return nanoseconds from the first due request to the last response, at least the configured duration
+     */
+    public long run() throws IOException, InterruptedException {
+        Sender[] senders = new Sender[selectorCount];
+        for (int i = 0; i < selectorCount; ++i) {
+            senders[i] = new Sender();
+        }
+        long interval = (long) (connectionCount * 1e9 / rate);
+        long step = (long) (1e9 / rate);
+        for (int i = 0; i < connectionCount; ++i) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, request(), interval, i * step);
+            if (binary) {
+                connection.out.put((byte) Client.BINARY_MAGIC);
+            }
+            senders[i % selectorCount].add(connection);
+        }
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[selectorCount];
+        for (int i = 0; i < selectorCount; ++i) {
+            senders[i].start(start, start + durationNanos);
+            threads[i] = new Thread(senders[i], "load-" + i);
+            threads[i].start();
+        }
+        long last = start + durationNanos;
+        for (int i = 0; i < selectorCount; ++i) {
+            threads[i].join();
+            last = Math.max(last, senders[i].lastReceived);
+        }
+        return last - start;
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] request() {
+        StringBuilder builder = new StringBuilder(messageSize);
+        Random random = new Random();
+        for (int i = 0; i < messageSize; ++i) {
+            builder.append(random.nextBoolean() ? '1' : '0');
+        }
+        if (binary) {
+            byte[] payload = builder.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(payload.length + 6);
+            int length = payload.length;
+            while ((length & ~0x7F) != 0) {
+                frame.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            frame.put((byte) length).put((byte) Client.OP_REVERSE).put(payload);
+            return Arrays.copyOf(frame.array(), frame.position());
+        }
+        JSONObject object = new JSONObject();
+        object.put(Client.dataId, builder.toString());
+        return (object.toJSONString() + "endl").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String toCsv(long elapsedNanos) {
+        return "connections,rate,achieved,sent,received,failed,lost,p50_us,p90_us,p99_us,p999_us,max_us\n"
+                + connectionCount + "," + rate + "," + String.format(Locale.ROOT, "%.1f", achieved(elapsedNanos)) + ","
+                + sent.get() + "," + received.get() + "," + failed.get() + "," + lost.get() + ","
+                + micros(latency.getValueAtPercentile(50)) + "," + micros(latency.getValueAtPercentile(90)) + ","
+                + micros(latency.getValueAtPercentile(99)) + "," + micros(latency.getValueAtPercentile(99.9)) + ","
+                + micros(latency.getMax());
+    }
+
+    public String toJson(long elapsedNanos) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("connections", connectionCount);
+        result.put("rate", rate);
+        result.put("achieved", achieved(elapsedNanos));
+        result.put("sent", sent.get());
+        result.put("received", received.get());
+        result.put("failed", failed.get());
+        result.put("lost", lost.get());
+        result.put("p50_us", micros(latency.getValueAtPercentile(50)));
+        result.put("p90_us", micros(latency.getValueAtPercentile(90)));
+        result.put("p99_us", micros(latency.getValueAtPercentile(99)));
+        result.put("p999_us", micros(latency.getValueAtPercentile(99.9)));
+        result.put("max_us", micros(latency.getMax()));
+        return JSONObject.toJSONString(result);
+    }
+
+    private double achieved(long elapsedNanos) {
+        return received.get() * 1e9 / elapsedNanos;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 6) {
+            System.out.println("Not enough arguments.");
+            System.out.println("Usage: LoadGenerator connections requestsPerSecond seconds messageLength ipAddress port [selectors [csv|json [text|binary]]]");
+            return;
+        }
+        final int connections = Integer.parseInt(args[0]);
+        final double rate = Double.parseDouble(args[1]);
+        final long duration = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(args[2]) * 1000));
+        final int messageSize = Integer.parseInt(args[3]);
+        final String ipAddress = args[4];
+        final int port = Integer.parseInt(args[5]);
+        final int selectors = args.length > 6 ? Integer.parseInt(args[6]) : 2;
+        final boolean json = args.length > 7 && args[7].equals("json");
+        final boolean binary = args.length > 8 && args[8].equals("binary");
+        LoadGenerator generator = new LoadGenerator(ipAddress, port, connections, rate, duration, messageSize, selectors, binary);
+        long elapsed = generator.run();
+        System.out.println(json ? generator.toJson(elapsed) : generator.toCsv(elapsed));
+    }
+
+    /**
+     * State of one connection: its send schedule, the unsent request bytes and the
+     * intended send times of the requests still waiting for a response.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final byte[] request;
+        final long interval;
+        long nextSend;
+        ByteBuffer out = ByteBuffer.allocate(8192);
+        final ByteBuffer in = ByteBuffer.allocate(8192);
+        long[] intended = new long[16];
+        int head = 0;
+        int size = 0;
+        int tail = 0;
+        int status = -1;
+        int length = 0;
+        int shift = 0;
+        int payloadLeft = -1;
+        SelectionKey key;
+
+        Connection(SocketChannel channel, byte[] request, long interval, long offset) {
+            this.channel = channel;
+            this.request = request;
+            this.interval = interval;
+            this.nextSend = offset;
+        }
+
+        void enqueue(long intendedAt) {
+            if (size == intended.length) {
+                long[] grown = new long[size << 1];
+                for (int i = 0; i < size; ++i) {
+                    grown[i] = intended[(head + i) & (size - 1)];
+                }
+                intended = grown;
+                head = 0;
+            }
+            intended[(head + size++) & (intended.length - 1)] = intendedAt;
+            if (out.remaining() < request.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() << 1, out.position() + request.length));
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(request);
+        }
+
+        long dequeue() {
+            long intendedAt = intended[head];
+            head = (head + 1) & (intended.length - 1);
+            --size;
+            return intendedAt;
+        }
+    }
+
+    /**
+     * One selector thread with its share of the connections, sends are ordered by their due time.
+     */
+    private final class Sender implements Runnable {
+        private final Selector selector = Selector.open();
+        private final PriorityQueue<Connection> schedule = new PriorityQueue<>(16, new Comparator<Connection>() {
+            @Override
+            public int compare(Connection a, Connection b) {
+                return Long.compare(a.nextSend, b.nextSend);
+            }
+        });
+        private final List<Connection> connections = new ArrayList<>();
+        private long end;
+        private int outstanding = 0;
+        long lastReceived = 0;
+
+        Sender() throws IOException {
+        }
+
+        void add(Connection connection) throws IOException {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+
+        void start(long start, long end) {
+            this.end = end;
+            for (Connection connection : connections) {
+                connection.nextSend += start;
+                schedule.add(connection);
+            }
+        }
+
+        @Override
+        public void run() {
+            long drainUntil = Long.MAX_VALUE;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    sendDue(now);
+                    if (schedule.isEmpty()) {
+                        if (drainUntil == Long.MAX_VALUE) {
+                            drainUntil = now + DRAIN_NANOS;
+                        }
+                        if (outstanding == 0 || now >= drainUntil) {
+                            break;
+                        }
+                    }
+                    long wait = (schedule.isEmpty() ? drainUntil : schedule.peek().nextSend) - now;
+                    long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait);
+                    if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("load generator failed " + e.getMessage());
+            } finally {
+                for (Connection connection : connections) {
+                    lost.addAndGet(connection.size);
+                    try {
+                        connection.channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void sendDue(long now) {
+            Connection connection;
+            while ((connection = schedule.peek()) != null && connection.nextSend <= now) {
+                schedule.poll();
+                if (!connection.key.isValid()) {
+                    continue;
+                }
+                connection.enqueue(connection.nextSend);
+                sent.incrementAndGet();
+                ++outstanding;
+                write(connection);
+                connection.nextSend += connection.interval;
+                if (connection.nextSend < end) {
+                    schedule.add(connection);
+                }
+            }
+        }
+
+        private void write(Connection connection) {
+            try {
+                connection.out.flip();
+                connection.channel.write(connection.out);
+                connection.out.compact();
+            } catch (IOException e) {
+                close(connection, e);
+                return;
+            }
+            SelectionKey key = connection.key;
+            if (connection.out.position() > 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void read(Connection connection) {
+            ByteBuffer in = connection.in;
+            int read;
+            try {
+                while ((read = connection.channel.read(in)) > 0) {
+                    long now = System.nanoTime();
+                    in.flip();
+                    if (binary) {
+                        readBinary(connection, in, now);
+                    } else {
+                        readText(connection, in, now);
+                    }
+                    in.clear();
+                }
+            } catch (IOException e) {
+                close(connection, e);
+                return;
+            }
+            if (read < 0) {
+                close(connection, null);
+            }
+        }
+
+        /**
+         * Responses are lines, a response is ok if it ends with "true}".
+         */
+        private void readText(Connection connection, ByteBuffer in, long now) {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b != '\n') {
+                    connection.tail = (connection.tail << 8) | (b & 0xFF);
+                } else {
+                    responded(connection, connection.tail == TRUE_TAIL, now);
+                }
+            }
+        }
+
+        /**
+         * Responses are a status byte, a varint length and the payload, which is skipped.
+         */
+        private void readBinary(Connection connection, ByteBuffer in, long now) {
+            while (in.hasRemaining()) {
+                if (connection.payloadLeft > 0) {
+                    int skipped = Math.min(connection.payloadLeft, in.remaining());
+                    in.position(in.position() + skipped);
+                    connection.payloadLeft -= skipped;
+                } else if (connection.status < 0) {
+                    connection.status = in.get() & 0xFF;
+                    connection.length = 0;
+                    connection.shift = 0;
+                    continue;
+                } else {
+                    byte b = in.get();
+                    connection.length |= (b & 0x7F) << connection.shift;
+                    connection.shift += 7;
+                    if (b < 0) {
+                        continue;
+                    }
+                    connection.payloadLeft = connection.length;
+                }
+                if (connection.payloadLeft == 0) {
+                    responded(connection, connection.status == 0, now);
+                    connection.status = -1;
+                    connection.payloadLeft = -1;
+                }
+            }
+        }
+
+        private void responded(Connection connection, boolean ok, long now) {
+            if (connection.size == 0) {
+                return;
+            }
+            latency.record(now - connection.dequeue());
+            received.incrementAndGet();
+            --outstanding;
+            lastReceived = now;
+            if (!ok) {
+                failed.incrementAndGet();
+            }
+        }
+
+        private void close(Connection connection, IOException cause) {
+            if (cause != null) {
+                System.err.println("connection failed " + cause.getMessage());
+            }
+            connection.key.cancel();
+            outstanding -= connection.size;
+            lost.addAndGet(connection.size);
+            connection.size = 0;
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -1,12 +1,11 @@
 package ru.spbau.goncharova.task3;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -17,46 +16,59 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class MyClient extends Client implements Callable<Long> {
 
     private final AtomicBoolean barrier;
+    private final int depth;
 
     public MyClient(String ipAddr, int port, int messageSize, int messageCount, AtomicBoolean barrier) throws IOException {
-        super(ipAddr, port, messageSize, messageCount);
+        this(ipAddr, port, messageSize, messageCount, barrier, 1);
+    }
+
+    /**
+     * @param depth number of requests kept outstanding on the socket, 1 waits for every response before the next request
+     */
+    public MyClient(String ipAddr, int port, int messageSize, int messageCount, AtomicBoolean barrier, int depth) throws IOException {
+        this(ipAddr, port, messageSize, messageCount, barrier, depth, false);
+    }
+
+    public MyClient(String ipAddr, int port, int messageSize, int messageCount, AtomicBoolean barrier, int depth,
+                    boolean binary) throws IOException {
+        super(ipAddr, port, messageSize, messageCount, binary);
         this.barrier = barrier;
+        this.depth = Math.max(1, depth);
     }
 
     public ProcessingResult processMessage(String message, long beforeRequestTime) {
-        JSONObject object = new JSONObject();
-        object.put(dataId, message);
-        String responseString = null;
         try {
             //send request
-            writer.write(object.toJSONString() + "endl");
-            writer.flush();
-            //accept response
-            responseString = reader.readLine();
-            long afterRequestTime = System.nanoTime();
-            long responseTime = afterRequestTime - beforeRequestTime;
-            JSONParser parser = new JSONParser();
-            JSONObject response = (JSONObject) parser.parse(responseString);
-            //the request has been processed by the server
-            return new ProcessingResult(response, responseTime);
+            send(message);
+            flush();
+            //accept response, the request has been processed by the server
+            return receive(beforeRequestTime);
         } catch (IOException e) {
             System.err.println("IOException when trying to process message " + message);
             e.printStackTrace();
             return null;
         } catch (ParseException e) {
-            System.err.println("ParseException when trying to parse JSON response from server " + responseString);
             e.printStackTrace();
             return null;
         }
     }
 
     public static void runTest(int clientsCount, int messageSize, int messageCount, String ipAddress, int port) {
+        runTest(clientsCount, messageSize, messageCount, ipAddress, port, 1);
+    }
+
+    public static void runTest(int clientsCount, int messageSize, int messageCount, String ipAddress, int port, int depth) {
+        runTest(clientsCount, messageSize, messageCount, ipAddress, port, depth, false);
+    }
+
+    public static void runTest(int clientsCount, int messageSize, int messageCount, String ipAddress, int port, int depth,
+                               boolean binary) {
         ExecutorService threadPool = Executors.newFixedThreadPool(clientsCount);
         Collection<Future<Long>> result = new LinkedList<Future<Long>>();
         AtomicBoolean barrier = new AtomicBoolean(true);
         for (int i = 0; i < clientsCount; ++i) {
             try {
-                final MyClient myClient = new MyClient(ipAddress, port, messageSize, messageCount, barrier);
+                final MyClient myClient = new MyClient(ipAddress, port, messageSize, messageCount, barrier, depth, binary);
                 result.add(threadPool.submit(myClient));
             } catch (IOException e) {
                 System.err.println("Failed to connect client number " + i);
@@ -88,15 +100,17 @@ public class MyClient extends Client implements Callable<Long> {
     public static void main(String[] args) throws FileNotFoundException {
         if (args.length < 5) {
             System.out.println("Not enough arguments.");
-            System.out.println("Usage: MyClient clientsCount messageLength messagesCount ipAddress port");
+            System.out.println("Usage: MyClient clientsCount messageLength messagesCount ipAddress port [pipeliningDepth [text|binary]]");
         } else {
             final int clientCount = Integer.parseInt(args[0]);
             final int messageSize = Integer.parseInt(args[1]);
             final int messageCount = Integer.parseInt(args[2]);
             final String ipAddress = args[3];
             final int port = Integer.parseInt(args[4]);
+            final int depth = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+            final boolean binary = args.length > 6 && args[6].equals("binary");
             for (int i = clientCount; i < 500; i += 10) {
-                runTest(i, messageSize, messageCount, ipAddress, port);
+                runTest(i, messageSize, messageCount, ipAddress, port, depth, binary);
             }
         }
     }
@@ -109,6 +123,9 @@ public class MyClient extends Client implements Callable<Long> {
         if (!socket.isConnected()) {
             System.err.println("not connected socket");
         }
+        if (depth > 1) {
+            return pipeline();
+        }
         long beforeRequestTime = System.nanoTime();
         //receive all responses
         for (int i = 0; i < messageCount; ++i) {
@@ -125,4 +142,35 @@ public class MyClient extends Client implements Callable<Long> {
         socket.close();
         return filterMean(responseTimes);
     }
+
+    /**
+     * Keeps {@link #depth} requests on the wire, every response is timed from the moment its own request was sent.
+     */
+    private long pipeline() throws IOException {
+        List<Long> responseTimes = new LinkedList<Long>();
+        ArrayDeque<Long> sendTimes = new ArrayDeque<Long>();
+        int sent = 0;
+        for (int i = 0; i < messageCount; ++i) {
+            while (sent < messageCount && sendTimes.size() < depth) {
+                send(generateMessage());
+                sendTimes.addLast(System.nanoTime());
+                ++sent;
+            }
+            flush();
+            ProcessingResult pRes;
+            try {
+                pRes = receive(sendTimes.pollFirst());
+            } catch (ParseException e) {
+                continue;
+            }
+            if (pRes == null) {
+                System.err.println("connection closed with " + (messageCount - i) + " responses missing");
+                break;
+            } else if (pRes.isOk()) {
+                responseTimes.add(pRes.responseTime);
+            }
+        }
+        socket.close();
+        return filterMean(responseTimes);
+    }
 }
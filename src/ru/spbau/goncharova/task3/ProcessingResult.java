@@ -4,14 +4,25 @@ import org.json.simple.JSONObject;
 
 public class ProcessingResult {
     private final JSONObject response;
+    private final boolean ok;
     final long responseTime;
 
     public boolean isOk() {
-        return (Boolean) (response.get(MyClient.statusId));
+        return response != null ? (Boolean) (response.get(MyClient.statusId)) : ok;
     }
 
     public ProcessingResult(JSONObject response, long responseTime) {
         this.response = response;
+        this.ok = false;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Result of a binary protocol response, which has only a status.
+     */
+    public ProcessingResult(boolean ok, long responseTime) {
+        this.response = null;
+        this.ok = ok;
         this.responseTime = responseTime;
     }
 }
\ No newline at end of file
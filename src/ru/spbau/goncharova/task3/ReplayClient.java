@@ -0,0 +1,399 @@
+package ru.spbau.goncharova.task3;
+
+import org.json.simple.JSONObject;
+import ru.spbau.voronchikhin.Histogram;
+import ru.spbau.voronchikhin.TraceReader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back a trace captured by a server started with {@code capture=file}.
+ * Every traced connection gets a connection of its own that sends its frames in the captured order.
+ * At a given speed a frame is due at its captured time divided by the speed and is sent then whether
+ * or not the earlier responses have arrived, latency counts from the due time as in {@link LoadGenerator}.
+ * At "max" speed every connection sends as fast as it can with up to {@link #MAX_WINDOW} requests
+ * in flight, latency counts from the send.
+ */
+public class ReplayClient {
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int MAX_WINDOW = 64;
+    private static final int TRUE_TAIL = ('r' << 24) | ('u' << 16) | ('e' << 8) | '}';
+    private static final byte[] DELIMITER = "endl".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress address;
+    private final double speed;
+    private final List<Stream> streams = new ArrayList<>();
+    private final Histogram latency = new Histogram();
+    private final PriorityQueue<Stream> schedule = new PriorityQueue<>(16, new Comparator<Stream>() {
+        @Override
+        public int compare(Stream a, Stream b) {
+            return Long.compare(a.nextDue, b.nextDue);
+        }
+    });
+    private long firstNanos = Long.MAX_VALUE;
+    private long start;
+    private long sent = 0;
+    private long received = 0;
+    private long failed = 0;
+    private long lost = 0;
+    private long outstanding = 0;
+    private long unsent = 0;
+    private long lastReceived = 0;
+
+    /**
+     * @param speed multiple of the captured rate, 0 sends as fast as possible
+     */
+    public ReplayClient(String trace, String ipAddress, int port, double speed) throws IOException {
+        this.address = new InetSocketAddress(ipAddress, port);
+        this.speed = speed;
+        Map<Long, Stream> byConnection = new LinkedHashMap<>();
+        try (TraceReader reader = new TraceReader(Paths.get(trace))) {
+            TraceReader.Record record;
+            while ((record = reader.next()) != null) {
+                Stream stream = byConnection.get(record.connection);
+                if (stream == null) {
+                    stream = new Stream(record.binary);
+                    byConnection.put(record.connection, stream);
+                    streams.add(stream);
+                }
+                stream.records.add(record);
+                firstNanos = Math.min(firstNanos, record.nanos);
+                ++unsent;
+            }
+        }
+    }
+
+    /**
+     * Connects, plays the trace and waits a bit for late responses.
+     *
+     * @return nanoseconds from the start to the last response
+     */
+    public long run() throws IOException {
+        try (Selector selector = Selector.open()) {
+            for (Stream stream : streams) {
+                stream.channel = SocketChannel.open(address);
+                stream.channel.socket().setTcpNoDelay(true);
+                stream.channel.configureBlocking(false);
+                stream.key = stream.channel.register(selector, SelectionKey.OP_READ, stream);
+                if (stream.binary) {
+                    stream.out.put((byte) Client.BINARY_MAGIC);
+                }
+            }
+            start = System.nanoTime();
+            for (Stream stream : streams) {
+                stream.nextDue = due(stream);
+                schedule.add(stream);
+            }
+            long drainUntil = Long.MAX_VALUE;
+            while (true) {
+                long now = System.nanoTime();
+                sendDue(now);
+                if (unsent == 0) {
+                    if (drainUntil == Long.MAX_VALUE) {
+                        drainUntil = now + DRAIN_NANOS;
+                    }
+                    if (outstanding == 0 || now >= drainUntil) {
+                        break;
+                    }
+                }
+                long next = unsent == 0 ? drainUntil : schedule.isEmpty() ? now + DRAIN_NANOS : schedule.peek().nextDue;
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(next - now);
+                if (waitMillis > 0) {
+                    selector.select(waitMillis);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    Stream stream = (Stream) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        read(stream);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(stream);
+                    }
+                }
+            }
+        } finally {
+            for (Stream stream : streams) {
+                lost += stream.size;
+                if (stream.channel != null) {
+                    stream.channel.close();
+                }
+            }
+        }
+        return Math.max(lastReceived, start + 1) - start;
+    }
+
+    /**
+     * @return time the next frame of the stream is due, at max speed the start if the window has room
+     */
+    private long due(Stream stream) {
+        if (speed > 0) {
+            return start + (long) ((stream.records.get(stream.next).nanos - firstNanos) / speed);
+        }
+        return stream.size < MAX_WINDOW ? start : Long.MAX_VALUE;
+    }
+
+    private void sendDue(long now) {
+        Stream stream;
+        while ((stream = schedule.peek()) != null && stream.nextDue <= now) {
+            schedule.poll();
+            if (!stream.key.isValid()) {
+                continue;
+            }
+            while (stream.next < stream.records.size() && stream.nextDue <= now) {
+                stream.enqueue(stream.records.get(stream.next++), speed > 0 ? stream.nextDue : now);
+                ++sent;
+                ++outstanding;
+                --unsent;
+                if (stream.next < stream.records.size()) {
+                    stream.nextDue = due(stream);
+                }
+            }
+            write(stream);
+            if (stream.next < stream.records.size() && stream.nextDue != Long.MAX_VALUE) {
+                schedule.add(stream);
+            }
+        }
+    }
+
+    private void write(Stream stream) {
+        try {
+            stream.out.flip();
+            stream.channel.write(stream.out);
+            stream.out.compact();
+        } catch (IOException e) {
+            close(stream, e);
+            return;
+        }
+        SelectionKey key = stream.key;
+        if (stream.out.position() > 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read(Stream stream) {
+        ByteBuffer in = stream.in;
+        int read;
+        try {
+            while ((read = stream.channel.read(in)) > 0) {
+                long now = System.nanoTime();
+                in.flip();
+                if (stream.binary) {
+                    readBinary(stream, in, now);
+                } else {
+                    readText(stream, in, now);
+                }
+                in.clear();
+            }
+        } catch (IOException e) {
+            close(stream, e);
+            return;
+        }
+        if (read < 0) {
+            close(stream, null);
+        } else if (speed <= 0 && stream.next < stream.records.size() && stream.nextDue == Long.MAX_VALUE) {
+            // the window has room again
+            stream.nextDue = due(stream);
+            if (stream.nextDue != Long.MAX_VALUE) {
+                schedule.add(stream);
+            }
+        }
+    }
+
+    /**
+     * Responses are lines, a response is ok if it ends with "true}".
+     */
+    private void readText(Stream stream, ByteBuffer in, long now) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b != '\n') {
+                stream.tail = (stream.tail << 8) | (b & 0xFF);
+            } else {
+                responded(stream, stream.tail == TRUE_TAIL, now);
+            }
+        }
+    }
+
+    /**
+     * Responses are a status byte, a varint length and the payload, which is skipped.
+     */
+    private void readBinary(Stream stream, ByteBuffer in, long now) {
+        while (in.hasRemaining()) {
+            if (stream.payloadLeft > 0) {
+                int skipped = Math.min(stream.payloadLeft, in.remaining());
+                in.position(in.position() + skipped);
+                stream.payloadLeft -= skipped;
+            } else if (stream.status < 0) {
+                stream.status = in.get() & 0xFF;
+                stream.length = 0;
+                stream.shift = 0;
+                continue;
+            } else {
+                byte b = in.get();
+                stream.length |= (b & 0x7F) << stream.shift;
+                stream.shift += 7;
+                if (b < 0) {
+                    continue;
+                }
+                stream.payloadLeft = stream.length;
+            }
+            if (stream.payloadLeft == 0) {
+                responded(stream, stream.status == 0, now);
+                stream.status = -1;
+                stream.payloadLeft = -1;
+            }
+        }
+    }
+
+    private void responded(Stream stream, boolean ok, long now) {
+        if (stream.size == 0) {
+            return;
+        }
+        latency.record(now - stream.dequeue());
+        ++received;
+        --outstanding;
+        lastReceived = now;
+        if (!ok) {
+            ++failed;
+        }
+    }
+
+    private void close(Stream stream, IOException cause) {
+        if (cause != null) {
+            System.err.println("connection failed " + cause.getMessage());
+        }
+        stream.key.cancel();
+        outstanding -= stream.size;
+        lost += stream.size;
+        stream.size = 0;
+        unsent -= stream.records.size() - stream.next;
+        stream.next = stream.records.size();
+        try {
+            stream.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public String toCsv(long elapsedNanos) {
+        return "connections,speed,achieved,sent,received,failed,lost,p50_us,p90_us,p99_us,p999_us,max_us\n"
+                + streams.size() + "," + (speed > 0 ? String.valueOf(speed) : "max") + ","
+                + String.format(Locale.ROOT, "%.1f", received * 1e9 / elapsedNanos) + ","
+                + sent + "," + received + "," + failed + "," + lost + ","
+                + micros(latency.getValueAtPercentile(50)) + "," + micros(latency.getValueAtPercentile(90)) + ","
+                + micros(latency.getValueAtPercentile(99)) + "," + micros(latency.getValueAtPercentile(99.9)) + ","
+                + micros(latency.getMax());
+    }
+
+    public String toJson(long elapsedNanos) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("connections", streams.size());
+        result.put("speed", speed > 0 ? String.valueOf(speed) : "max");
+        result.put("achieved", received * 1e9 / elapsedNanos);
+        result.put("sent", sent);
+        result.put("received", received);
+        result.put("failed", failed);
+        result.put("lost", lost);
+        result.put("p50_us", micros(latency.getValueAtPercentile(50)));
+        result.put("p90_us", micros(latency.getValueAtPercentile(90)));
+        result.put("p99_us", micros(latency.getValueAtPercentile(99)));
+        result.put("p999_us", micros(latency.getValueAtPercentile(99.9)));
+        result.put("max_us", micros(latency.getMax()));
+        return JSONObject.toJSONString(result);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Not enough arguments.");
+            System.out.println("Usage: ReplayClient traceFile ipAddress port [speed|max [csv|json]]");
+            return;
+        }
+        final double speed = args.length > 3 && !args[3].equals("max") ? Double.parseDouble(args[3]) : 0;
+        final boolean json = args.length > 4 && args[4].equals("json");
+        ReplayClient client = new ReplayClient(args[0], args[1], Integer.parseInt(args[2]), speed);
+        long elapsed = client.run();
+        System.out.println(json ? client.toJson(elapsed) : client.toCsv(elapsed));
+    }
+
+    /**
+     * Frames of one traced connection, the unsent request bytes and the due times
+     * of the requests still waiting for a response.
+     */
+    private static final class Stream {
+        final boolean binary;
+        final List<TraceReader.Record> records = new ArrayList<>();
+        int next = 0;
+        long nextDue;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out = ByteBuffer.allocate(8192);
+        final ByteBuffer in = ByteBuffer.allocate(8192);
+        long[] intended = new long[16];
+        int head = 0;
+        int size = 0;
+        int tail = 0;
+        int status = -1;
+        int length = 0;
+        int shift = 0;
+        int payloadLeft = -1;
+
+        Stream(boolean binary) {
+            this.binary = binary;
+        }
+
+        void enqueue(TraceReader.Record record, long intendedAt) {
+            if (size == intended.length) {
+                long[] grown = new long[size << 1];
+                for (int i = 0; i < size; ++i) {
+                    grown[i] = intended[(head + i) & (size - 1)];
+                }
+                intended = grown;
+                head = 0;
+            }
+            intended[(head + size++) & (intended.length - 1)] = intendedAt;
+            int needed = record.frame.length + (binary ? 5 : DELIMITER.length);
+            if (out.remaining() < needed) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() << 1, out.position() + needed));
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            if (binary) {
+                int length = record.frame.length - 1;
+                while ((length & ~0x7F) != 0) {
+                    out.put((byte) ((length & 0x7F) | 0x80));
+                    length >>>= 7;
+                }
+                out.put((byte) length);
+                out.put(record.frame);
+            } else {
+                out.put(record.frame).put(DELIMITER);
+            }
+        }
+
+        long dequeue() {
+            long intendedAt = intended[head];
+            head = (head + 1) & (intended.length - 1);
+            --size;
+            return intendedAt;
+        }
+    }
+}
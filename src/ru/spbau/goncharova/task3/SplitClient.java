@@ -1,7 +1,6 @@
 package ru.spbau.goncharova.task3;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -14,13 +13,19 @@ public class SplitClient extends Client implements Callable<Integer> {
     private boolean isWrite = true;
     private int currentMessageCount = 0;
     private int successfulMessageCount = 0;
+    private int failedMessageCount = 0;
     private final ExecutorService threadPool;
     private final LinkedList<Long> responseTimes = new LinkedList<Long>();
     private long startTime = -1;
     private final AtomicInteger finishedClients;
 
     public SplitClient(String ipAddr, int port, int messageSize, int messageCount, ExecutorService threadPool, AtomicInteger atomicInteger) throws IOException {
-        super(ipAddr, port, messageSize, messageCount);
+        this(ipAddr, port, messageSize, messageCount, threadPool, atomicInteger, false);
+    }
+
+    public SplitClient(String ipAddr, int port, int messageSize, int messageCount, ExecutorService threadPool, AtomicInteger atomicInteger,
+                       boolean binary) throws IOException {
+        super(ipAddr, port, messageSize, messageCount, binary);
         this.threadPool = threadPool;
         this.finishedClients = atomicInteger;
     }
@@ -33,28 +38,32 @@ public class SplitClient extends Client implements Callable<Integer> {
         if (startTime <= 0) {
             startTime = System.nanoTime();
         }
-        if (isWrite) {
-            String message = generateMessage();
-            JSONObject object = new JSONObject();
-            object.put(dataId, message);
-            //send request
-            writer.write(object.toJSONString() + "endl");
-            writer.flush();
-        } else {
-            String responseString = reader.readLine();
-            long afterRequestTime = System.nanoTime();
-            long responseTime = afterRequestTime - startTime;
-            JSONParser parser = new JSONParser();
-            JSONObject response = (JSONObject) parser.parse(responseString);
-            //the request has been processed by the server
-            ProcessingResult result = new ProcessingResult(response, responseTime);
-            if (result.isOk()) {
-                responseTimes.add(responseTime);
-                successfulMessageCount++;
+        try {
+            if (isWrite) {
+                String message = generateMessage();
+                //send request
+                send(message);
+                flush();
+            } else {
+                //the request has been processed by the server
+                ProcessingResult result = receive(startTime);
+                if (result == null) {
+                    stop("connection closed by the server");
+                    return 0;
+                }
+                if (result.isOk()) {
+                    responseTimes.add(result.responseTime);
+                    successfulMessageCount++;
+                } else {
+                    failedMessageCount++;
+                }
+                //message is processed
+                currentMessageCount++;
+                startTime = System.nanoTime();
             }
-            //message is processed
-            currentMessageCount++;
-            startTime = System.nanoTime();
+        } catch (IOException | ParseException e) {
+            stop("connection failed " + e.getMessage());
+            return 0;
         }
         isWrite = !isWrite;
         if (currentMessageCount < messageCount) {
@@ -65,18 +74,37 @@ public class SplitClient extends Client implements Callable<Integer> {
         return 0;
     }
 
+    /**
+     * Counts the messages left as failed and finishes this client.
+     */
+    private void stop(String reason) {
+        failedMessageCount += messageCount - currentMessageCount;
+        System.err.println(reason + " after " + currentMessageCount + " messages");
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        finishedClients.incrementAndGet();
+    }
+
     public static void runTest(int clientsCount, int messageSize, int messageCount, String ipAddress, int port) throws InterruptedException {
+        runTest(clientsCount, messageSize, messageCount, ipAddress, port, false);
+    }
+
+    public static void runTest(int clientsCount, int messageSize, int messageCount, String ipAddress, int port,
+                               boolean binary) throws InterruptedException {
         ExecutorService threadPool = Executors.newFixedThreadPool(clientsCount);
         SplitClient[] clients = new SplitClient[clientsCount];
         AtomicInteger waiter = new AtomicInteger(0);
         for (int i = 0; i < clientsCount; ++i) {
             try {
-                final SplitClient myClient = new SplitClient(ipAddress, port, messageSize, messageCount, threadPool, waiter);
+                final SplitClient myClient = new SplitClient(ipAddress, port, messageSize, messageCount, threadPool, waiter, binary);
                 clients[i] = myClient;
                 threadPool.submit(myClient);
             } catch (IOException e) {
                 System.err.println("Failed to connect client number " + i);
                 e.printStackTrace();
+                waiter.incrementAndGet();
             }
         }
 //        threadPool.awaitTermination(100, TimeUnit.DAYS);
@@ -85,27 +113,37 @@ public class SplitClient extends Client implements Callable<Integer> {
         threadPool.shutdown();
         int successfulClients = 0;
         long sum = 0;
+        int failedMessages = 0;
         for (SplitClient client : clients) {
+            if (client == null) {
+                failedMessages += messageCount;
+                continue;
+            }
+            failedMessages += client.failedMessageCount;
             if (client.successfulMessageCount > 0) {
                 successfulClients++;
                 sum += filterMean(client.responseTimes);
             }
         }
-        System.out.println(successfulClients + "," + sum / successfulClients);
+        if (failedMessages > 0) {
+            System.err.println(failedMessages + " failed messages with " + clientsCount + " clients");
+        }
+        System.out.println(successfulClients + "," + (successfulClients > 0 ? sum / successfulClients : 0));
     }
 
     public static void main(String[] args) throws FileNotFoundException, InterruptedException {
         if (args.length < 5) {
             System.out.println("Not enough arguments.");
-            System.out.println("Usage: MyClient clientsCount messageLength messagesCount ipAddress port");
+            System.out.println("Usage: SplitClient clientsCount messageLength messagesCount ipAddress port [text|binary]");
         } else {
             final int clientCount = Integer.parseInt(args[0]);
             final int messageSize = Integer.parseInt(args[1]);
             final int messageCount = Integer.parseInt(args[2]);
             final String ipAddress = args[3];
             final int port = Integer.parseInt(args[4]);
+            final boolean binary = args.length > 5 && args[5].equals("binary");
             for (int i = clientCount; i < 500; i += 10) {
-                runTest(i, messageSize, messageCount, ipAddress, port);
+                runTest(i, messageSize, messageCount, ipAddress, port, binary);
             }
         }
     }
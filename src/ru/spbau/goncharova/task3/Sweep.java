@@ -0,0 +1,469 @@
+package ru.spbau.goncharova.task3;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import ru.spbau.voronchikhin.Histogram;
+import ru.spbau.voronchikhin.Main;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sweeps the number of concurrent clients the way {@link MyClient} and {@link SplitClient} do,
+ * but warms the server up first, repeats every level several times and reports the mean of every
+ * metric with a 95% confidence interval. Every client is a connection with a thread of its own
+ * that sends a request and waits for its response, over and over, for the length of a trial.
+ * The server is either already running, started in this JVM or started as a child JVM.
+ * Results go to a JSON file that can serve as the baseline of a later run: a throughput that dropped
+ * or a latency percentile that rose by more than the threshold, and by more than the two confidence
+ * intervals together, is flagged as a regression and the exit status is 2.
+ * <p>
+ * Usage: Sweep [option=value...], e.g.
+ * {@code Sweep server=child engine=async levels=1,10,100 trials=5 output=async.json baseline=nio.json}
+ */
+public class Sweep {
+    private static final long SERVER_START_MILLIS = 10000;
+    // two sided 95% quantiles of Student's t distribution for 1 to 30 degrees of freedom
+    private static final double[] T_95 = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+    private static final String[] METRICS = {"throughput", "p50_us", "p99_us", "p999_us"};
+
+    private String host = "localhost";
+    private int port = 1234;
+    private int[] levels = {1, 10, 50, 100, 200};
+    private int trials = 5;
+    private double trialSeconds = 3;
+    private double warmupSeconds = 5;
+    private int messageLength = 1000;
+    private boolean binary = false;
+    private String server = "none";
+    private String engine = "nio";
+    private final List<String> serverOptions = new ArrayList<>();
+    private final List<String> jvmOptions = new ArrayList<>();
+    private String label = "";
+    private String output;
+    private String baseline;
+    private double threshold = 10;
+
+    /**
+     * Result of one trial.
+     */
+    private static final class Trial {
+        double throughput;
+        long responses;
+        long failures;
+        long p50;
+        long p99;
+        long p999;
+
+        double get(String metric) {
+            switch (metric) {
+                case "throughput":
+                    return throughput;
+                case "p50_us":
+                    return p50;
+                case "p99_us":
+                    return p99;
+                default:
+                    return p999;
+            }
+        }
+    }
+
+    /**
+     * A client connection that sends the same request for the whole trial.
+     */
+    private static final class Connection extends Client implements Runnable {
+        private final String message;
+        private final CountDownLatch ready;
+        private final long[] window;
+        private final Histogram latency;
+        private final AtomicLong responses;
+        private final AtomicLong failures;
+
+        Connection(Sweep sweep, CountDownLatch ready, long[] window, Histogram latency,
+                   AtomicLong responses, AtomicLong failures) throws IOException {
+            super(sweep.host, sweep.port, sweep.messageLength, 0, sweep.binary);
+            this.message = generateMessage();
+            this.ready = ready;
+            this.window = window;
+            this.latency = latency;
+            this.responses = responses;
+            this.failures = failures;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ready.await();
+                while (true) {
+                    long sentAt = System.nanoTime();
+                    if (sentAt >= window[1]) {
+                        break;
+                    }
+                    send(message);
+                    flush();
+                    ProcessingResult result = receive(sentAt);
+                    if (result == null) {
+                        System.err.println("connection closed by the server");
+                        break;
+                    }
+                    if (System.nanoTime() <= window[1]) {
+                        latency.record(result.responseTime);
+                        responses.incrementAndGet();
+                        if (!result.isOk()) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (IOException | ParseException e) {
+                System.err.println("connection failed " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void set(String name, String value) {
+        if (name.startsWith("server.")) {
+            serverOptions.add(name.substring("server.".length()) + "=" + value);
+            return;
+        }
+        switch (name) {
+            case "host":
+                host = value;
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "levels":
+                String[] values = value.split(",");
+                levels = new int[values.length];
+                for (int i = 0; i < values.length; ++i) {
+                    levels[i] = Integer.parseInt(values[i]);
+                }
+                break;
+            case "trials":
+                trials = Integer.parseInt(value);
+                break;
+            case "seconds":
+                trialSeconds = Double.parseDouble(value);
+                break;
+            case "warmup":
+                warmupSeconds = Double.parseDouble(value);
+                break;
+            case "messageLength":
+                messageLength = Integer.parseInt(value);
+                break;
+            case "protocol":
+                binary = value.equals("binary");
+                break;
+            case "server":
+                server = value;
+                break;
+            case "engine":
+                engine = value;
+                break;
+            case "jvm":
+                jvmOptions.addAll(Arrays.asList(value.split(" ")));
+                break;
+            case "label":
+                label = value;
+                break;
+            case "output":
+                output = value;
+                break;
+            case "baseline":
+                baseline = value;
+                break;
+            case "threshold":
+                threshold = Double.parseDouble(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option " + name);
+        }
+    }
+
+    /**
+     * Runs the clients of one level for {@code seconds}.
+     */
+    private Trial trial(int clients, double seconds) throws IOException, InterruptedException {
+        Histogram latency = new Histogram();
+        AtomicLong responses = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(1);
+        long[] window = new long[2];
+        Thread[] threads = new Thread[clients];
+        try {
+            for (int i = 0; i < clients; ++i) {
+                threads[i] = new Thread(new Connection(this, ready, window, latency, responses, failures), "sweep-" + i);
+                threads[i].start();
+            }
+            window[0] = System.nanoTime();
+            window[1] = window[0] + (long) (seconds * 1e9);
+            // the latch publishes the window to the client threads
+            ready.countDown();
+        } finally {
+            if (ready.getCount() > 0) {
+                for (Thread thread : threads) {
+                    if (thread != null) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Trial trial = new Trial();
+        trial.responses = responses.get();
+        trial.failures = failures.get();
+        trial.throughput = trial.responses / seconds;
+        trial.p50 = TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50));
+        trial.p99 = TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99));
+        trial.p999 = TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.9));
+        return trial;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject run() throws IOException, InterruptedException {
+        JSONObject result = new JSONObject();
+        result.put("label", label);
+        result.put("engine", server.equals("none") ? "external" : engine);
+        result.put("protocol", binary ? "binary" : "text");
+        result.put("messageLength", messageLength);
+        result.put("trials", trials);
+        result.put("seconds", trialSeconds);
+        result.put("date", new Date().toString());
+        int warmupClients = 0;
+        for (int level : levels) {
+            warmupClients = Math.max(warmupClients, level);
+        }
+        if (warmupSeconds > 0) {
+            Trial warmup = trial(warmupClients, warmupSeconds);
+            System.out.println(String.format(Locale.ROOT, "warm-up clients %d throughput %.1f", warmupClients, warmup.throughput));
+        }
+        JSONArray results = new JSONArray();
+        for (int level : levels) {
+            List<Trial> levelTrials = new ArrayList<>();
+            for (int i = 0; i < trials; ++i) {
+                Trial trial = trial(level, trialSeconds);
+                levelTrials.add(trial);
+                System.out.println(String.format(Locale.ROOT, "clients %d trial %d throughput %.1f p50 %d p99 %d p99.9 %d us failures %d",
+                        level, i, trial.throughput, trial.p50, trial.p99, trial.p999, trial.failures));
+            }
+            JSONObject levelResult = new JSONObject();
+            levelResult.put("clients", level);
+            long failures = 0;
+            for (Trial trial : levelTrials) {
+                failures += trial.failures;
+            }
+            levelResult.put("failures", failures);
+            StringBuilder summary = new StringBuilder("clients " + level);
+            for (String metric : METRICS) {
+                double[] values = new double[levelTrials.size()];
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = levelTrials.get(i).get(metric);
+                }
+                JSONObject statistic = new JSONObject();
+                double mean = mean(values);
+                double ci = confidence(values, mean);
+                statistic.put("mean", mean);
+                statistic.put("ci95", ci);
+                JSONArray samples = new JSONArray();
+                for (double value : values) {
+                    samples.add(value);
+                }
+                statistic.put("trials", samples);
+                levelResult.put(metric, statistic);
+                summary.append(String.format(Locale.ROOT, " %s %.1f +- %.1f", metric, mean, ci));
+            }
+            System.out.println(summary);
+            results.add(levelResult);
+        }
+        result.put("levels", results);
+        return result;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * @return half width of the 95% confidence interval of the mean
+     */
+    private static double confidence(double[] values, double mean) {
+        int n = values.length;
+        if (n < 2) {
+            return 0;
+        }
+        double variance = 0;
+        for (double value : values) {
+            variance += (value - mean) * (value - mean) / (n - 1);
+        }
+        double t = n - 1 <= T_95.length ? T_95[n - 2] : 1.96;
+        return t * Math.sqrt(variance / n);
+    }
+
+    /**
+     * Prints the change of every level present in both runs.
+     *
+     * @return number of regressions
+     */
+    private int compare(JSONObject current, JSONObject base) {
+        Map<Long, JSONObject> baseLevels = new HashMap<>();
+        for (Object level : (JSONArray) base.get("levels")) {
+            baseLevels.put(((Number) ((JSONObject) level).get("clients")).longValue(), (JSONObject) level);
+        }
+        int regressions = 0;
+        System.out.println("compared with " + baseline + " " + base.get("label") + ", threshold " + threshold + "%");
+        for (Object object : (JSONArray) current.get("levels")) {
+            JSONObject level = (JSONObject) object;
+            long clients = ((Number) level.get("clients")).longValue();
+            JSONObject baseLevel = baseLevels.get(clients);
+            if (baseLevel == null) {
+                continue;
+            }
+            for (String metric : METRICS) {
+                double mean = number(level, metric, "mean");
+                double baseMean = number(baseLevel, metric, "mean");
+                if (baseMean == 0) {
+                    continue;
+                }
+                double change = 100 * (mean - baseMean) / baseMean;
+                // less throughput or more latency is worse
+                double worse = metric.equals("throughput") ? -change : change;
+                boolean significant = Math.abs(mean - baseMean) > number(level, metric, "ci95") + number(baseLevel, metric, "ci95");
+                boolean regression = worse > threshold && significant;
+                if (regression) {
+                    ++regressions;
+                }
+                System.out.println(String.format(Locale.ROOT, "clients %d %s %.1f -> %.1f (%+.1f%%)%s",
+                        clients, metric, baseMean, mean, change, regression ? " REGRESSION" : ""));
+            }
+        }
+        return regressions;
+    }
+
+    private static double number(JSONObject level, String metric, String name) {
+        return ((Number) ((JSONObject) level.get(metric)).get(name)).doubleValue();
+    }
+
+    /**
+     * Starts the server unless it is external.
+     *
+     * @return the child process or null
+     */
+    private Process startServer() throws IOException, InterruptedException {
+        final List<String> args = new ArrayList<>();
+        args.add(String.valueOf(port));
+        args.add("0");
+        args.add(engine);
+        args.addAll(serverOptions);
+        Process process = null;
+        if (server.equals("inprocess")) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Main.main(args.toArray(new String[args.size()]));
+                }
+            }, "sweep-server");
+            thread.setDaemon(true);
+            thread.start();
+        } else if (server.equals("child")) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Main.class.getName());
+            command.addAll(args);
+            process = new ProcessBuilder(command).inheritIO().start();
+        } else if (!server.equals("none")) {
+            throw new IllegalArgumentException("server is none, inprocess or child");
+        }
+        awaitServer(process);
+        return process;
+    }
+
+    private void awaitServer(Process process) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + SERVER_START_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || process != null && !process.isAlive()) {
+                    throw new IOException("server did not start on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ParseException {
+        Sweep sweep = new Sweep();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length < 2) {
+                System.out.println("Usage: Sweep [host=localhost] [port=1234] [levels=1,10,50,100,200] [trials=5] [seconds=3]"
+                        + " [warmup=5] [messageLength=1000] [protocol=text|binary] [server=none|inprocess|child]"
+                        + " [engine=nio|blocking|async] [server.option=value...] [jvm=\"-Xmx1g ...\"]"
+                        + " [label=name] [output=results.json] [baseline=previous.json] [threshold=percent]");
+                return;
+            }
+            sweep.set(option[0], option[1]);
+        }
+        Process process = sweep.startServer();
+        JSONObject result;
+        try {
+            result = sweep.run();
+        } finally {
+            if (process != null) {
+                process.destroy();
+                process.waitFor();
+            }
+        }
+        if (sweep.output != null) {
+            try (Writer writer = new FileWriter(sweep.output)) {
+                result.writeJSONString(writer);
+            }
+        } else {
+            System.out.println(result.toJSONString());
+        }
+        if (sweep.baseline != null) {
+            JSONObject base;
+            try (Reader reader = new FileReader(sweep.baseline)) {
+                base = (JSONObject) new JSONParser().parse(reader);
+            }
+            int regressions = sweep.compare(result, base);
+            System.out.println(regressions == 0 ? "no regressions" : regressions + " regressions");
+            if (regressions > 0) {
+                System.exit(2);
+            }
+        }
+        System.exit(0);
+    }
+}
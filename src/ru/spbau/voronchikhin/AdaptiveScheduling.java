@@ -0,0 +1,56 @@
+package ru.spbau.voronchikhin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs a request inline if its frame is small and requests of similar size have recently been
+ * processed within the budget. Processing time is estimated per power of two of the frame size
+ * as a moving average with weight 1/8, a size without samples goes to the pool first.
+ * Concurrent updates may overwrite each other, that only makes the estimate a bit noisier.
+ */
+public class AdaptiveScheduling implements SchedulingPolicy {
+    public static final int DEFAULT_MAX_INLINE_BYTES = 4096;
+    public static final long DEFAULT_INLINE_BUDGET_MICROS = 200;
+    private static final int SIZE_CLASSES = 32;
+
+    private final int maxInlineBytes;
+    private final long inlineBudgetNanos;
+    private final AtomicLongArray estimates = new AtomicLongArray(SIZE_CLASSES);
+
+    public AdaptiveScheduling() {
+        this(DEFAULT_MAX_INLINE_BYTES, TimeUnit.MICROSECONDS.toNanos(DEFAULT_INLINE_BUDGET_MICROS));
+    }
+
+    public AdaptiveScheduling(int maxInlineBytes, long inlineBudgetNanos) {
+        this.maxInlineBytes = maxInlineBytes;
+        this.inlineBudgetNanos = inlineBudgetNanos;
+    }
+
+    @Override
+    public boolean runInline(int frameSize) {
+        if (frameSize > maxInlineBytes) {
+            return false;
+        }
+        long estimate = estimates.get(sizeClass(frameSize));
+        return estimate != 0 && estimate <= inlineBudgetNanos;
+    }
+
+    @Override
+    public void processed(int frameSize, long nanos) {
+        int sizeClass = sizeClass(frameSize);
+        long estimate = estimates.get(sizeClass);
+        estimates.set(sizeClass, estimate == 0 ? Math.max(1, nanos) : estimate + (nanos - estimate) / 8);
+    }
+
+    /**
+     * @return estimated processing time in nanoseconds for frames of this size, 0 if unknown
+     */
+    public long getEstimate(int frameSize) {
+        return estimates.get(sizeClass(frameSize));
+    }
+
+    private static int sizeClass(int frameSize) {
+        return 32 - Integer.numberOfLeadingZeros(frameSize);
+    }
+}
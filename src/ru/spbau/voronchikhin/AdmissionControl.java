@@ -0,0 +1,151 @@
+package ru.spbau.voronchikhin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits that keep an overloaded server from buffering without bound, and counters of what they rejected.
+ * A connection stops being read while it has too many requests in flight or too much unsent output;
+ * frames over the spill threshold go to a temporary file, oversized frames and requests over
+ * the global in-flight limit are answered with {"status":false}.
+ * The NIO server also closes connections that stay idle, take too long to send a frame
+ * or do not read their responses, a timeout of 0 turns the check off.
+ */
+public class AdmissionControl {
+    public int maxFrameSize = 16 << 20;
+    public int spillThreshold = 1 << 20;
+    public long maxSpilledFrameSize = 1L << 30;
+    public int maxInFlightPerConnection = 64;
+    public int maxInFlight = 10000;
+    public long maxPendingOutputBytes = 4 << 20;
+    public long idleTimeoutMillis = 60000;
+    public long readTimeoutMillis = 30000;
+    public long writeTimeoutMillis = 30000;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder oversizedFrames = new LongAdder();
+    private final LongAdder spilledFrames = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder inFlightPauses = new LongAdder();
+    private final LongAdder outputPauses = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder readTimeouts = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+
+    /**
+     * Sets a limit by its field name, used for command line options.
+     */
+    public void set(String name, String value) {
+        switch (name) {
+            case "maxFrameSize":
+                maxFrameSize = Integer.parseInt(value);
+                break;
+            case "spillThreshold":
+                spillThreshold = Integer.parseInt(value);
+                break;
+            case "maxSpilledFrameSize":
+                maxSpilledFrameSize = Long.parseLong(value);
+                break;
+            case "maxInFlightPerConnection":
+                maxInFlightPerConnection = Integer.parseInt(value);
+                break;
+            case "maxInFlight":
+                maxInFlight = Integer.parseInt(value);
+                break;
+            case "maxPendingOutputBytes":
+                maxPendingOutputBytes = Long.parseLong(value);
+                break;
+            case "idleTimeoutMillis":
+                idleTimeoutMillis = Long.parseLong(value);
+                break;
+            case "readTimeoutMillis":
+                readTimeoutMillis = Long.parseLong(value);
+                break;
+            case "writeTimeoutMillis":
+                writeTimeoutMillis = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown limit " + name);
+        }
+    }
+
+    /**
+     * @return false if the server already has {@link #maxInFlight} requests, the request must be rejected
+     */
+    public boolean tryAcquire() {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            overloaded.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    void oversizedFrame() {
+        oversizedFrames.increment();
+    }
+
+    void spilledFrame() {
+        spilledFrames.increment();
+    }
+
+    void inFlightPause() {
+        inFlightPauses.increment();
+    }
+
+    void outputPause() {
+        outputPauses.increment();
+    }
+
+    void idleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    void readTimeout() {
+        readTimeouts.increment();
+    }
+
+    void writeTimeout() {
+        writeTimeouts.increment();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getOversizedFrames() {
+        return oversizedFrames.sum();
+    }
+
+    public long getSpilledFrames() {
+        return spilledFrames.sum();
+    }
+
+    public long getOverloaded() {
+        return overloaded.sum();
+    }
+
+    public long getInFlightPauses() {
+        return inFlightPauses.sum();
+    }
+
+    public long getOutputPauses() {
+        return outputPauses.sum();
+    }
+
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    public long getReadTimeouts() {
+        return readTimeouts.sum();
+    }
+
+    public long getWriteTimeouts() {
+        return writeTimeouts.sum();
+    }
+}
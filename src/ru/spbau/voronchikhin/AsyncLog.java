@@ -0,0 +1,193 @@
+package ru.spbau.voronchikhin;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Error log that never blocks the thread that logs. Messages go into a preallocated ring and
+ * a background thread writes them to stderr, a message that finds the ring full is dropped and counted.
+ * Every kind of message is a {@link Topic} with a constant prefix and a limit per second,
+ * messages over the limit are only counted and the count is written with the next one that gets through.
+ * The ring takes many producers and one consumer, every slot has a sequence number that tells
+ * whether it is free for the producer of that round or filled for the consumer.
+ */
+public final class AsyncLog {
+    public static final int DEFAULT_PER_SECOND = 10;
+    private static final int CAPACITY = 4096;
+    private static final int MAX_DETAIL = 256;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Topic[] topics = new Topic[CAPACITY];
+    private static final String[] details = new String[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder suppressed = new LongAdder();
+    private static final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 16);
+    private static final StringBuilder line = new StringBuilder();
+    private static long head = 0;
+
+    static {
+        for (int i = 0; i < CAPACITY; ++i) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    if (!drain()) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                }
+            }
+        }, "async-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }));
+    }
+
+    private AsyncLog() {
+    }
+
+    /**
+     * Kind of message with its own rate limit, meant to be kept in a static field of the class that logs.
+     */
+    public static final class Topic {
+        private final String prefix;
+        private final int perSecond;
+        private volatile long second = 0;
+        private final AtomicInteger logged = new AtomicInteger();
+        private final LongAdder suppressed = new LongAdder();
+
+        private Topic(String prefix, int perSecond) {
+            this.prefix = prefix;
+            this.perSecond = perSecond;
+        }
+
+        /**
+         * Logs the prefix followed by the detail, the detail is cut if it is long.
+         */
+        public void log(String detail) {
+            long now = System.nanoTime() >>> 30;
+            if (now != second) {
+                // racing resets only let a few more messages through
+                second = now;
+                logged.set(0);
+            }
+            if (logged.incrementAndGet() > perSecond) {
+                suppressed.increment();
+                AsyncLog.suppressed.increment();
+                return;
+            }
+            offer(this, detail);
+        }
+
+        public void log() {
+            log("");
+        }
+    }
+
+    public static Topic topic(String prefix) {
+        return topic(prefix, DEFAULT_PER_SECOND);
+    }
+
+    public static Topic topic(String prefix, int perSecond) {
+        return new Topic(prefix, perSecond);
+    }
+
+    /**
+     * @return messages lost because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return messages over the rate limit of their topic
+     */
+    public static long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    private static void offer(Topic topic, String detail) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & (CAPACITY - 1);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    topics[index] = topic;
+                    details[index] = detail;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Writes everything in the ring, synchronized as the shutdown hook drains the ring too.
+     *
+     * @return false if the ring was empty
+     */
+    private static synchronized boolean drain() {
+        boolean wrote = false;
+        while (true) {
+            int index = (int) head & (CAPACITY - 1);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Topic topic = topics[index];
+            String detail = details[index];
+            topics[index] = null;
+            details[index] = null;
+            sequences.set(index, head + CAPACITY);
+            ++head;
+            line.setLength(0);
+            line.append(topic.prefix);
+            if (detail != null && detail.length() > MAX_DETAIL) {
+                line.append(detail, 0, MAX_DETAIL).append("...");
+            } else {
+                line.append(detail);
+            }
+            long count = topic.suppressed.sumThenReset();
+            if (count > 0) {
+                line.append(" (").append(count).append(" more suppressed)");
+            }
+            line.append('\n');
+            try {
+                out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ignored) {
+            }
+            wrote = true;
+        }
+        if (wrote) {
+            try {
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        }
+        return wrote;
+    }
+}
@@ -0,0 +1,362 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completion based server on NIO.2 asynchronous channels. Accepts, reads and writes are operations
+ * whose {@link CompletionHandler}s run on the threads of the channel group, and those threads process
+ * the requests too: a read completion answers every complete frame it brought, the responses leave
+ * in one gathering write and the next read is issued once the write has completed.
+ * A connection never has more than one operation in flight, so its responses stay in order
+ * without a reorder buffer while the connections spread over the group threads.
+ * The group has {@link ServerConfig#workers} threads, there is a single listener and no reactors.
+ * A file response is copied through a pooled buffer, an asynchronous channel can not take a transfer.
+ */
+public class AsyncServer implements Engine {
+    private static final AsyncLog.Topic EXECUTION_FAILED = AsyncLog.topic("failed execution ");
+    private static final AsyncLog.Topic CLOSE_FAILED = AsyncLog.topic("cant close =( ");
+    private static final AsyncLog.Topic ACCEPT_FAILED = AsyncLog.topic("Failed on acception :");
+    private static final AsyncLog.Topic READ_FAILED = AsyncLog.topic("Failed on reading :");
+    private static final AsyncLog.Topic WRITE_FAILED = AsyncLog.topic("Write exception : ");
+    private static final int MAX_GATHER = 16;
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private final ServerConfig config;
+    private final AdmissionControl admission;
+    private final BufferPool bufferPool = new BufferPool();
+    private final ServerStats stats = new ServerStats();
+    private ResponseCache cache;
+    private TraceWriter capture;
+    private int statsPort = 0;
+    private AsynchronousServerSocketChannel listener;
+
+    /**
+     * Listener count and reactor count of the config do not apply.
+     */
+    public AsyncServer(ServerConfig config, AdmissionControl admission) {
+        this.config = config;
+        this.admission = admission;
+        stats.watch(bufferPool, admission);
+    }
+
+    @Override
+    public void setStatsPort(int port) {
+        this.statsPort = port;
+    }
+
+    @Override
+    public void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+        stats.watch(cache);
+    }
+
+    @Override
+    public void setCapture(TraceWriter capture) {
+        this.capture = capture;
+        stats.watch(capture);
+    }
+
+    @Override
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("async server started on port " + config.port + ", threads " + config.workers);
+        AsynchronousChannelGroup group = null;
+        try {
+            group = AsynchronousChannelGroup.withFixedThreadPool(config.workers, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "async-" + count.getAndIncrement());
+                }
+            });
+            listener = config.openListener(group);
+            stats.register("async-" + config.port);
+            if (statsPort > 0) {
+                new StatsServer(statsPort, stats).start();
+            }
+            listener.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+                @Override
+                public void completed(AsynchronousSocketChannel channel, Void attachment) {
+                    listener.accept(null, this);
+                    new Session(channel).start();
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    if (listener.isOpen()) {
+                        ACCEPT_FAILED.log(e.getMessage());
+                        listener.accept(null, this);
+                    }
+                }
+            });
+            group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (IOException e) {
+            EXECUTION_FAILED.log(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (group != null) {
+                try {
+                    group.shutdownNow();
+                } catch (IOException e) {
+                    CLOSE_FAILED.log(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection, moves from read to processing to write and back to read on whichever group thread
+     * completes its operation.
+     */
+    private final class Session {
+        private final AsynchronousSocketChannel channel;
+        private final long id = Connection.nextId();
+        private final FrameDecoder decoder = new FrameDecoder(bufferPool, admission.maxFrameSize,
+                admission.spillThreshold, admission.maxSpilledFrameSize);
+        private final ArrayDeque<Object> output = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private ByteBuffer copy;
+        private long writeStartedAt;
+        private boolean closed = false;
+
+        private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                stats.bytesRead(read);
+                process();
+                if (output.isEmpty()) {
+                    read();
+                } else {
+                    writeStartedAt = System.nanoTime();
+                    write();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                if (e instanceof InterruptedByTimeoutException) {
+                    if (decoder.hasUnfinished()) {
+                        admission.readTimeout();
+                    } else {
+                        admission.idleTimeout();
+                    }
+                } else if (!(e instanceof AsynchronousCloseException)) {
+                    READ_FAILED.log(e.getMessage());
+                }
+                close();
+            }
+        };
+
+        private final CompletionHandler<Long, Void> gatherHandler = new CompletionHandler<Long, Void>() {
+            @Override
+            public void completed(Long written, Void attachment) {
+                Arrays.fill(gather, null);
+                written(written);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                Arrays.fill(gather, null);
+                writeFailed(e);
+            }
+        };
+
+        private final CompletionHandler<Integer, Void> copyHandler = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                if (copy.hasRemaining()) {
+                    stats.bytesWritten(written);
+                    channel.write(copy, admission.writeTimeoutMillis, TimeUnit.MILLISECONDS, null, this);
+                } else {
+                    written(written);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                writeFailed(e);
+            }
+        };
+
+        Session(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void start() {
+            stats.connectionOpened();
+            try {
+                config.configure(channel);
+            } catch (IOException e) {
+                EXECUTION_FAILED.log(e.getMessage());
+                close();
+                return;
+            }
+            read();
+        }
+
+        /**
+         * Waits for the idle timeout between requests and for the read timeout inside one.
+         */
+        private void read() {
+            long timeout = decoder.hasUnfinished() ? admission.readTimeoutMillis : admission.idleTimeoutMillis;
+            channel.read(decoder.readBuffer(), timeout, TimeUnit.MILLISECONDS, null, readHandler);
+        }
+
+        /**
+         * Answers the complete frames on this thread, the responses are queued in request order.
+         */
+        private void process() {
+            ByteBuffer frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                stats.request();
+                boolean binary = decoder.isBinary();
+                if (frame == FrameDecoder.TOO_LARGE) {
+                    admission.oversizedFrame();
+                    reject(binary);
+                } else if (frame == FrameDecoder.SPILLED) {
+                    SpilledFrame spilled = decoder.takeSpilled();
+                    admission.spilledFrame();
+                    if (!admission.tryAcquire()) {
+                        spilled.close();
+                        reject(binary);
+                        continue;
+                    }
+                    long startedAt = System.nanoTime();
+                    try {
+                        output.addLast(Worker.respond(spilled, bufferPool, stats));
+                    } finally {
+                        admission.release();
+                    }
+                    stats.process.record(System.nanoTime() - startedAt);
+                } else {
+                    if (capture != null) {
+                        capture.capture(id, binary, frame);
+                    }
+                    if (!admission.tryAcquire()) {
+                        bufferPool.release(frame);
+                        reject(binary);
+                        continue;
+                    }
+                    long startedAt = System.nanoTime();
+                    try {
+                        output.addLast(Worker.respond(frame, binary, bufferPool, stats, cache));
+                    } finally {
+                        admission.release();
+                    }
+                    stats.process.record(System.nanoTime() - startedAt);
+                }
+            }
+            if (!decoder.hasUnfinished()) {
+                decoder.release();
+            }
+        }
+
+        private void reject(boolean binary) {
+            stats.failure();
+            output.addLast(binary ? BinaryCodec.failure() : JsonCodec.failure());
+        }
+
+        /**
+         * Writes the buffers at the head of the queue with one gathering write,
+         * or the next chunk of a file response.
+         */
+        private void write() {
+            if (output.peekFirst() instanceof FileRegion) {
+                FileRegion region = (FileRegion) output.peekFirst();
+                if (copy == null) {
+                    copy = bufferPool.acquire(COPY_SIZE);
+                }
+                copy.clear();
+                try {
+                    if (region.readInto(copy) == 0) {
+                        throw new IOException("response file ended early");
+                    }
+                } catch (IOException e) {
+                    writeFailed(e);
+                    return;
+                }
+                copy.flip();
+                channel.write(copy, admission.writeTimeoutMillis, TimeUnit.MILLISECONDS, null, copyHandler);
+                return;
+            }
+            int count = 0;
+            for (Object buffer : output) {
+                if (!(buffer instanceof ByteBuffer) || count == MAX_GATHER) {
+                    break;
+                }
+                gather[count++] = (ByteBuffer) buffer;
+            }
+            channel.write(gather, 0, count, admission.writeTimeoutMillis, TimeUnit.MILLISECONDS, null, gatherHandler);
+        }
+
+        private void written(long count) {
+            stats.bytesWritten(count);
+            while (!output.isEmpty() && FileRegion.remaining(output.peekFirst()) == 0) {
+                FileRegion.release(output.pollFirst(), bufferPool);
+            }
+            if (!output.isEmpty()) {
+                write();
+                return;
+            }
+            stats.write.record(System.nanoTime() - writeStartedAt);
+            if (copy != null) {
+                bufferPool.release(copy);
+                copy = null;
+            }
+            read();
+        }
+
+        private void writeFailed(Throwable e) {
+            if (e instanceof InterruptedByTimeoutException) {
+                admission.writeTimeout();
+            } else if (!(e instanceof AsynchronousCloseException)) {
+                WRITE_FAILED.log(e.getMessage());
+            }
+            close();
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                CLOSE_FAILED.log(e.getMessage());
+            }
+            decoder.close();
+            Object response;
+            while ((response = output.pollFirst()) != null) {
+                FileRegion.release(response, bufferPool);
+            }
+            if (copy != null) {
+                bufferPool.release(copy);
+                copy = null;
+            }
+            stats.connectionClosed();
+        }
+    }
+}
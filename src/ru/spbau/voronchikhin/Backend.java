@@ -0,0 +1,45 @@
+package ru.spbau.voronchikhin;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Server} behind the {@link Balancer}: its persistent connections, one set per protocol,
+ * and what the balancer knows about its health. Latency is a moving average with weight 1/8
+ * of the service time of a request: from forwarding it, or from the previous response on the same
+ * connection if it was queued behind that one, to reading its response. So requests pipelined on
+ * a connection do not count their wait for each other. Only the balancer thread touches it.
+ */
+class Backend {
+    final InetSocketAddress address;
+    final List<BackendConnection> textConnections = new ArrayList<>();
+    final List<BackendConnection> binaryConnections = new ArrayList<>();
+    int outstanding = 0;
+    long latencyNanos = 0;
+    boolean healthy = true;
+    // ejected for latency alone, still routed to when no backend is healthy
+    boolean slow = false;
+    long ejectedUntil = 0;
+    boolean probing = false;
+    long probedAt = 0;
+    long forwarded = 0;
+    long ejections = 0;
+
+    Backend(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    List<BackendConnection> connections(boolean binary) {
+        return binary ? binaryConnections : textConnections;
+    }
+
+    void recordLatency(long nanos) {
+        latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + ((nanos - latencyNanos) >> 3);
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,165 @@
+package ru.spbau.voronchikhin;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Persistent connection from the {@link Balancer} to a backend, shared by the requests of all clients.
+ * The server answers the requests of a connection in the order they came, so the requests in flight
+ * are kept in a FIFO and every response read belongs to the oldest of them.
+ * Text responses end with a newline, binary ones are a status, a varint length and the payload.
+ */
+class BackendConnection {
+    private static final byte[] DELIMITER = "endl".getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_SIZE = 8192;
+
+    final Backend backend;
+    final boolean binary;
+    final SocketChannel channel;
+    final OutputQueue output = new OutputQueue();
+    final ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+    SelectionKey key;
+    boolean connected = false;
+    boolean dirty = false;
+    long lastResponseAt = 0;
+    long lastActiveAt;
+    private ByteBuffer buffer;
+    private ByteBuffer view;
+    private int start = 0;
+    private int scanned = 0;
+
+    /**
+     * Request forwarded on a connection, a health probe has no client.
+     */
+    static final class Pending {
+        final BalancerClient client;
+        final long sequence;
+        final long sentAt;
+
+        Pending(BalancerClient client, long sequence, long sentAt) {
+            this.client = client;
+            this.sequence = sequence;
+            this.sentAt = sentAt;
+        }
+    }
+
+    BackendConnection(Backend backend, boolean binary, SocketChannel channel) {
+        this.backend = backend;
+        this.binary = binary;
+        this.channel = channel;
+    }
+
+    /**
+     * Queues the frame with its delimiter or length prefix, the frame is consumed but stays with the caller.
+     */
+    void forward(ByteBuffer frame, Pending pending, BufferPool pool, long now) {
+        ByteBuffer request;
+        if (binary) {
+            int length = frame.remaining() - 1;
+            request = pool.acquire(BinaryCodec.varintSize(length) + frame.remaining());
+            BinaryCodec.putVarint(request, length);
+            request.put(frame);
+        } else {
+            request = pool.acquire(frame.remaining() + DELIMITER.length);
+            request.put(frame);
+            request.put(DELIMITER);
+        }
+        request.flip();
+        output.add(request, now);
+        inFlight.addLast(pending);
+        lastActiveAt = now;
+    }
+
+    /**
+     * @return buffer to read responses into, always has free space
+     */
+    ByteBuffer readBuffer(BufferPool pool) {
+        if (buffer == null) {
+            setBuffer(pool.acquire(READ_SIZE));
+        } else if (buffer.position() == buffer.capacity()) {
+            if (start > 0) {
+                buffer.flip();
+                buffer.position(start);
+                buffer.compact();
+                scanned -= start;
+                start = 0;
+            } else {
+                ByteBuffer bigger = pool.acquire(buffer.capacity() << 1);
+                buffer.flip();
+                bigger.put(buffer);
+                pool.release(buffer);
+                setBuffer(bigger);
+            }
+        }
+        buffer.limit(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * @return next complete response in a pooled buffer or null if there is none yet
+     */
+    ByteBuffer nextResponse(BufferPool pool) {
+        if (buffer == null) {
+            return null;
+        }
+        int end = binary ? binaryEnd() : textEnd();
+        if (end < 0) {
+            return null;
+        }
+        ByteBuffer response = pool.acquire(end - start);
+        view.limit(end).position(start);
+        response.put(view);
+        response.flip();
+        start = scanned = end;
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = scanned = 0;
+        }
+        return response;
+    }
+
+    private int textEnd() {
+        for (int i = scanned; i < buffer.position(); ++i) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        scanned = buffer.position();
+        return -1;
+    }
+
+    private int binaryEnd() {
+        int i = start + 1;
+        int length = 0;
+        for (int shift = 0; i < buffer.position(); shift += 7) {
+            byte b = buffer.get(i++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                long end = (long) i + length;
+                return end <= buffer.position() ? (int) end : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the unsent requests and the unfinished response, for a connection that is closed.
+     */
+    void release(BufferPool pool) {
+        output.release(pool);
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            view = null;
+        }
+        start = scanned = 0;
+    }
+
+    private void setBuffer(ByteBuffer newBuffer) {
+        buffer = newBuffer;
+        view = newBuffer.duplicate();
+    }
+}
@@ -0,0 +1,643 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front end that spreads the requests of its clients over several {@link Server} backends.
+ * One selector thread splits client streams into frames, routes every frame to a healthy backend
+ * as {@link BalancerConfig} says and forwards it over one of a few persistent connections to that backend,
+ * which carry the requests of all clients. Responses are put back into the request order of their client.
+ * Every tick the balancer probes the backends with a small request, ejects the ones that are unreachable,
+ * time out or are much slower than the rest, and takes an ejected backend back once a probe is answered.
+ * A backend ejected only for being slow is still used when no backend is healthy.
+ * Requests in flight on a connection that fails are answered with the failure response.
+ */
+public class Balancer implements Runnable {
+    private static final AsyncLog.Topic EXECUTION_FAILED = AsyncLog.topic("balancer failed ");
+    private static final AsyncLog.Topic ACCEPT_FAILED = AsyncLog.topic("Failed on acception :");
+    private static final AsyncLog.Topic CLOSE_FAILED = AsyncLog.topic("cant close =( ");
+    private static final AsyncLog.Topic CLIENT_FAILED = AsyncLog.topic("client connection failed ");
+    private static final AsyncLog.Topic BACKEND_FAILED = AsyncLog.topic("backend connection failed ");
+    private static final AsyncLog.Topic BACKEND_EJECTED = AsyncLog.topic("backend ejected ");
+    private static final AsyncLog.Topic BACKEND_RESTORED = AsyncLog.topic("backend restored ");
+    private static final long TICK_MILLIS = 100;
+    private static final int VIRTUAL_NODES = 100;
+    private static final ByteBuffer PROBE =
+            ByteBuffer.wrap("{\"data\":\"ping\"}".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    private static final ByteBuffer MAGIC = ByteBuffer.wrap(new byte[]{FrameDecoder.BINARY_MAGIC}).asReadOnlyBuffer();
+
+    private final ServerConfig config;
+    private final BalancerConfig balancing;
+    private final AdmissionControl admission;
+    private final BufferPool pool = new BufferPool();
+    private final ServerStats stats = new ServerStats();
+    // backend writes are kept out of the client byte counts
+    private final ServerStats backendStats = new ServerStats();
+    private final List<Backend> backends = new ArrayList<>();
+    private final TreeMap<Integer, Backend> ring = new TreeMap<>();
+    private final ArrayDeque<BalancerClient> dirtyClients = new ArrayDeque<>();
+    private final ArrayDeque<BackendConnection> dirtyConnections = new ArrayDeque<>();
+    private final boolean hashing;
+    private final long probeIntervalNanos;
+    private final long requestTimeoutNanos;
+    private final long ejectNanos;
+    private final long minSlowNanos;
+    private final long idleConnectionNanos;
+    private Selector selector;
+    private int nextBackend = 0;
+    private int statsPort = 0;
+
+    public Balancer(ServerConfig config, BalancerConfig balancing, AdmissionControl admission) {
+        this.config = config;
+        this.balancing = balancing;
+        this.admission = admission;
+        this.hashing = balancing.routing.equals("hash");
+        this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(balancing.probeIntervalMillis);
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(balancing.requestTimeoutMillis);
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(balancing.ejectMillis);
+        this.minSlowNanos = TimeUnit.MILLISECONDS.toNanos(balancing.minSlowMillis);
+        this.idleConnectionNanos = TimeUnit.MILLISECONDS.toNanos(balancing.idleConnectionMillis);
+        for (InetSocketAddress address : balancing.backends) {
+            Backend backend = new Backend(address);
+            backends.add(backend);
+            for (int i = 0; i < VIRTUAL_NODES; ++i) {
+                ring.put(mix((backend + "#" + i).hashCode()), backend);
+            }
+        }
+        stats.watch(pool, admission);
+        stats.watch(backends);
+    }
+
+    /**
+     * Serves the plain text stats report on {@code port} as well, 0 turns it off.
+     */
+    public void setStatsPort(int port) {
+        this.statsPort = port;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("balancer started on port " + config.port + ", backends " + backends
+                + ", routing " + (hashing ? "hash" : "least"));
+        try (ServerSocketChannel listener = config.openListener(); Selector selector = Selector.open()) {
+            this.selector = selector;
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            stats.register("balancer-" + config.port);
+            if (statsPort > 0) {
+                new StatsServer(statsPort, stats).start();
+            }
+            final long tick = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+            long nextTick = System.nanoTime() + tick;
+            while (true) {
+                selector.select(TICK_MILLIS);
+                long now = System.nanoTime();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Object attachment = key.attachment();
+                    if (attachment instanceof BalancerClient) {
+                        handleClient((BalancerClient) attachment, now);
+                    } else if (attachment instanceof BackendConnection) {
+                        handleBackend((BackendConnection) attachment, now);
+                    } else {
+                        accept(listener);
+                    }
+                }
+                if (now - nextTick >= 0) {
+                    checkBackends(now);
+                    nextTick = now + tick;
+                }
+                flushDirty(now);
+            }
+        } catch (IOException e) {
+            EXECUTION_FAILED.log(e.getMessage());
+        }
+    }
+
+    private void accept(ServerSocketChannel listener) {
+        SocketChannel channel = null;
+        try {
+            channel = listener.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            config.configure(channel);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new BalancerClient(channel, key, new FrameDecoder(pool, admission.maxFrameSize)));
+            stats.connectionOpened();
+        } catch (IOException e) {
+            ACCEPT_FAILED.log(e.getMessage());
+            close(channel);
+        }
+    }
+
+    private void handleClient(BalancerClient client, long now) {
+        if (client.key.isReadable()) {
+            try {
+                int read = client.channel.read(client.decoder.readBuffer());
+                if (read < 0) {
+                    closeClient(client);
+                    return;
+                }
+                stats.bytesRead(read);
+            } catch (IOException e) {
+                CLIENT_FAILED.log(e.getMessage());
+                closeClient(client);
+                return;
+            }
+            dispatchFrames(client, now);
+        }
+        markDirty(client);
+    }
+
+    /**
+     * Forwards the frames read so far until the client has too many requests in flight.
+     */
+    private void dispatchFrames(BalancerClient client, long now) {
+        while (client.inFlight < balancing.maxInFlightPerClient) {
+            ByteBuffer frame = client.decoder.nextFrame();
+            if (frame == null) {
+                if (!client.decoder.hasUnfinished()) {
+                    client.decoder.release();
+                }
+                return;
+            }
+            stats.request();
+            boolean binary = client.decoder.isBinary();
+            long sequence = client.pending.issue();
+            if (frame == FrameDecoder.TOO_LARGE) {
+                admission.oversizedFrame();
+                fail(client, sequence, binary, now);
+                continue;
+            }
+            Backend backend = hashing ? hashed(frame) : leastOutstanding();
+            BackendConnection connection = backend == null ? null : connection(backend, binary, now);
+            if (connection == null) {
+                pool.release(frame);
+                fail(client, sequence, binary, now);
+                continue;
+            }
+            connection.forward(frame, new BackendConnection.Pending(client, sequence, now), pool, now);
+            pool.release(frame);
+            ++client.inFlight;
+            ++backend.outstanding;
+            ++backend.forwarded;
+            markDirty(connection);
+        }
+    }
+
+    private Backend leastOutstanding() {
+        Backend best = leastOutstanding(false);
+        if (best == null) {
+            best = leastOutstanding(true);
+        }
+        // ties go round robin
+        nextBackend = backends.isEmpty() ? 0 : (nextBackend + 1) % backends.size();
+        return best;
+    }
+
+    private Backend leastOutstanding(boolean slow) {
+        final int size = backends.size();
+        Backend best = null;
+        for (int i = 0; i < size; ++i) {
+            Backend backend = backends.get((nextBackend + i) % size);
+            if (routable(backend, slow) && (best == null || backend.outstanding < best.outstanding)) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return first healthy backend clockwise from the hash of the frame on the ring,
+     * or the first slow one if none is healthy
+     */
+    private Backend hashed(ByteBuffer frame) {
+        int hash = mix(frame.hashCode());
+        Backend backend = hashed(hash, false);
+        return backend != null ? backend : hashed(hash, true);
+    }
+
+    private Backend hashed(int hash, boolean slow) {
+        for (Backend backend : ring.tailMap(hash).values()) {
+            if (routable(backend, slow)) {
+                return backend;
+            }
+        }
+        for (Backend backend : ring.headMap(hash).values()) {
+            if (routable(backend, slow)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param slow whether backends ejected as slow are taken as well
+     */
+    private static boolean routable(Backend backend, boolean slow) {
+        return backend.healthy || slow && backend.slow;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads similar frames and node names over the ring.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * @return the connection to the backend with the fewest requests in flight,
+     * a new one if all are busy and there may be more, null if the backend can not be reached
+     */
+    private BackendConnection connection(Backend backend, boolean binary, long now) {
+        List<BackendConnection> connections = backend.connections(binary);
+        for (int i = connections.size() - 1; i >= 0; --i) {
+            BackendConnection connection = connections.get(i);
+            // the backend may be closing it for being idle right now, a request sent on it would be lost
+            if (connection.inFlight.isEmpty() && now - connection.lastActiveAt > idleConnectionNanos) {
+                closeConnection(connection, now);
+            }
+        }
+        BackendConnection best = null;
+        for (BackendConnection connection : connections) {
+            if (best == null || connection.inFlight.size() < best.inFlight.size()) {
+                best = connection;
+            }
+        }
+        if (best == null || !best.inFlight.isEmpty() && connections.size() < balancing.connectionsPerBackend) {
+            BackendConnection opened = open(backend, binary, now);
+            if (opened != null) {
+                best = opened;
+            }
+        }
+        return best;
+    }
+
+    private BackendConnection open(Backend backend, boolean binary, long now) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            config.configure(channel);
+            BackendConnection connection = new BackendConnection(backend, binary, channel);
+            connection.lastActiveAt = now;
+            connection.connected = channel.connect(backend.address);
+            connection.key = channel.register(selector,
+                    connection.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            if (binary) {
+                connection.output.add(MAGIC.duplicate(), now);
+                markDirty(connection);
+            }
+            backend.connections(binary).add(connection);
+            return connection;
+        } catch (IOException e) {
+            BACKEND_FAILED.log(backend + " " + e.getMessage());
+            close(channel);
+            eject(backend, now, "unreachable");
+            return null;
+        }
+    }
+
+    private void handleBackend(BackendConnection connection, long now) {
+        SelectionKey key = connection.key;
+        try {
+            if (key.isConnectable()) {
+                connection.channel.finishConnect();
+                connection.connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                markDirty(connection);
+            }
+            if (key.isReadable()) {
+                readBackend(connection, now);
+            }
+            if (key.isValid() && key.isWritable()) {
+                markDirty(connection);
+            }
+        } catch (IOException e) {
+            backendFailed(connection, e.getMessage(), now);
+        }
+    }
+
+    private void readBackend(BackendConnection connection, long now) throws IOException {
+        if (connection.channel.read(connection.readBuffer(pool)) < 0) {
+            if (connection.inFlight.isEmpty()) {
+                // the backend evicted an idle connection, the next request opens a new one
+                closeConnection(connection, now);
+                return;
+            }
+            throw new IOException("closed by the backend");
+        }
+        Backend backend = connection.backend;
+        ByteBuffer response;
+        while ((response = connection.nextResponse(pool)) != null) {
+            BackendConnection.Pending pending = connection.inFlight.pollFirst();
+            if (pending == null) {
+                pool.release(response);
+                throw new IOException("response without a request");
+            }
+            --backend.outstanding;
+            // a request pipelined behind another one is served from the moment the previous response came
+            long service = now - Math.max(pending.sentAt, connection.lastResponseAt);
+            connection.lastResponseAt = now;
+            connection.lastActiveAt = now;
+            backend.recordLatency(service);
+            BalancerClient client = pending.client;
+            if (client == null) {
+                pool.release(response);
+                probed(backend, service);
+                continue;
+            }
+            stats.process.record(now - pending.sentAt);
+            --client.inFlight;
+            if (client.closed) {
+                pool.release(response);
+                continue;
+            }
+            client.pending.complete(pending.sequence, response);
+            deliver(client, now);
+            // frames may wait in the decoder whether or not reading was paused yet
+            dispatchFrames(client, now);
+        }
+    }
+
+    private void probed(Backend backend, long latency) {
+        backend.probing = false;
+        if (!backend.healthy) {
+            backend.healthy = true;
+            backend.slow = false;
+            backend.latencyNanos = latency;
+            BACKEND_RESTORED.log(backend.toString());
+        }
+    }
+
+    private void fail(BalancerClient client, long sequence, boolean binary, long now) {
+        stats.failure();
+        client.pending.complete(sequence, binary ? BinaryCodec.failure() : JsonCodec.failure());
+        deliver(client, now);
+    }
+
+    /**
+     * Moves the responses that are next in request order to the output queue.
+     */
+    private void deliver(BalancerClient client, long now) {
+        Object response;
+        while ((response = client.pending.poll()) != null) {
+            client.output.add(response, now);
+        }
+        markDirty(client);
+    }
+
+    private void markDirty(BalancerClient client) {
+        if (!client.dirty) {
+            client.dirty = true;
+            dirtyClients.addLast(client);
+        }
+    }
+
+    private void markDirty(BackendConnection connection) {
+        if (!connection.dirty) {
+            connection.dirty = true;
+            dirtyConnections.addLast(connection);
+        }
+    }
+
+    /**
+     * Writes everything queued during this round of the loop, a write per connection.
+     * A failed backend write fails requests of clients, so the two queues are drained until both are empty.
+     */
+    private void flushDirty(long now) {
+        while (!dirtyConnections.isEmpty() || !dirtyClients.isEmpty()) {
+            BackendConnection connection;
+            while ((connection = dirtyConnections.pollFirst()) != null) {
+                connection.dirty = false;
+                flush(connection, now);
+            }
+            BalancerClient client;
+            while ((client = dirtyClients.pollFirst()) != null) {
+                client.dirty = false;
+                flush(client, now);
+            }
+        }
+    }
+
+    private void flush(BackendConnection connection, long now) {
+        if (!connection.connected || !connection.key.isValid()) {
+            return;
+        }
+        try {
+            boolean done = connection.output.isEmpty() || connection.output.flush(connection.channel, pool, backendStats);
+            connection.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            backendFailed(connection, e.getMessage(), now);
+        }
+    }
+
+    /**
+     * Writes what the client can take now and stops reading it while it has too many requests in flight.
+     * Frames already read are forwarded first, they get no readiness event of their own.
+     */
+    private void flush(BalancerClient client, long now) {
+        if (client.closed) {
+            return;
+        }
+        dispatchFrames(client, now);
+        try {
+            if (!client.output.isEmpty()) {
+                client.output.flush(client.channel, pool, stats);
+            }
+        } catch (IOException e) {
+            CLIENT_FAILED.log(e.getMessage());
+            closeClient(client);
+            return;
+        }
+        boolean pause = client.inFlight >= balancing.maxInFlightPerClient;
+        if (pause && !client.readPaused) {
+            admission.inFlightPause();
+        }
+        client.readPaused = pause;
+        client.key.interestOps((pause ? 0 : SelectionKey.OP_READ)
+                | (client.output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    private void closeClient(BalancerClient client) {
+        if (client.closed) {
+            return;
+        }
+        client.closed = true;
+        client.key.cancel();
+        close(client.channel);
+        client.decoder.close();
+        client.pending.release(pool);
+        client.output.release(pool);
+        stats.connectionClosed();
+    }
+
+    private void backendFailed(BackendConnection connection, String reason, long now) {
+        BACKEND_FAILED.log(connection.backend + " " + reason);
+        closeConnection(connection, now);
+        eject(connection.backend, now, "failed");
+    }
+
+    /**
+     * Closes a backend connection and answers the requests in flight on it with the failure response.
+     */
+    private void closeConnection(BackendConnection connection, long now) {
+        Backend backend = connection.backend;
+        connection.key.cancel();
+        close(connection.channel);
+        backend.connections(connection.binary).remove(connection);
+        connection.release(pool);
+        BackendConnection.Pending pending;
+        while ((pending = connection.inFlight.pollFirst()) != null) {
+            --backend.outstanding;
+            BalancerClient client = pending.client;
+            if (client == null) {
+                backend.probing = false;
+                continue;
+            }
+            --client.inFlight;
+            if (!client.closed) {
+                fail(client, pending.sequence, connection.binary, now);
+            }
+        }
+    }
+
+    /**
+     * Takes the backend out of routing until {@link BalancerConfig#ejectMillis} from now,
+     * an ejected backend that fails again stays out longer.
+     */
+    private void eject(Backend backend, long now, String reason) {
+        backend.ejectedUntil = now + ejectNanos;
+        backend.slow = false;
+        if (backend.healthy) {
+            backend.healthy = false;
+            ++backend.ejections;
+            BACKEND_EJECTED.log(backend + " " + reason);
+        }
+    }
+
+    private void checkBackends(long now) {
+        int healthy = 0;
+        for (Backend backend : backends) {
+            checkTimeouts(backend, backend.textConnections, now);
+            checkTimeouts(backend, backend.binaryConnections, now);
+            if (backend.healthy) {
+                ++healthy;
+            }
+            if (backend.probing) {
+                continue;
+            }
+            if (backend.healthy ? now - backend.probedAt >= probeIntervalNanos : now - backend.ejectedUntil >= 0) {
+                probe(backend, now);
+            }
+        }
+        ejectSlow(healthy, now);
+    }
+
+    private void checkTimeouts(Backend backend, List<BackendConnection> connections, long now) {
+        // closing removes the connection from the list
+        for (int i = connections.size() - 1; i >= 0; --i) {
+            BackendConnection connection = connections.get(i);
+            BackendConnection.Pending oldest = connection.inFlight.peekFirst();
+            if (oldest != null && now - oldest.sentAt > requestTimeoutNanos) {
+                closeConnection(connection, now);
+                eject(backend, now, "timed out");
+            }
+        }
+    }
+
+    /**
+     * Sends the probe behind the requests already in flight, so an overloaded backend answers it late.
+     */
+    private void probe(Backend backend, long now) {
+        backend.probedAt = now;
+        BackendConnection connection = connection(backend, false, now);
+        if (connection == null) {
+            return;
+        }
+        backend.probing = true;
+        ++backend.outstanding;
+        connection.forward(PROBE.duplicate(), new BackendConnection.Pending(null, 0, now), pool, now);
+        markDirty(connection);
+    }
+
+    /**
+     * Ejects the backends whose service time is over {@link BalancerConfig#slowFactor} times the median
+     * of the others, the lower one for an even count, but always leaves one backend in.
+     * Comparing with the others keeps a backend that is loaded like the rest from being ejected.
+     */
+    private void ejectSlow(int healthy, long now) {
+        long[] latencies = new long[backends.size()];
+        int count = 0;
+        for (Backend backend : backends) {
+            if (backend.healthy && backend.latencyNanos > 0) {
+                latencies[count++] = backend.latencyNanos;
+            }
+        }
+        if (count < 2) {
+            return;
+        }
+        long[] others = new long[count - 1];
+        for (Backend backend : backends) {
+            if (healthy < 2 || !backend.healthy || backend.latencyNanos == 0 || backend.latencyNanos <= minSlowNanos) {
+                continue;
+            }
+            int size = 0;
+            boolean skipped = false;
+            for (int i = 0; i < count; ++i) {
+                if (!skipped && latencies[i] == backend.latencyNanos) {
+                    skipped = true;
+                } else {
+                    others[size++] = latencies[i];
+                }
+            }
+            Arrays.sort(others, 0, size);
+            if (backend.latencyNanos > others[(size - 1) / 2] * balancing.slowFactor) {
+                eject(backend, now, "slow, latency " + TimeUnit.NANOSECONDS.toMillis(backend.latencyNanos) + " ms");
+                backend.slow = true;
+                --healthy;
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            CLOSE_FAILED.log(e.getMessage());
+        }
+    }
+}
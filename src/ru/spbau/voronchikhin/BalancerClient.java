@@ -0,0 +1,26 @@
+package ru.spbau.voronchikhin;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client connection of the {@link Balancer}. Its requests may go to different backends,
+ * the responses are put back into request order before they are written.
+ */
+class BalancerClient {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final FrameDecoder decoder;
+    final ReorderBuffer pending = new ReorderBuffer();
+    final OutputQueue output = new OutputQueue();
+    int inFlight = 0;
+    boolean readPaused = false;
+    boolean closed = false;
+    boolean dirty = false;
+
+    BalancerClient(SocketChannel channel, SelectionKey key, FrameDecoder decoder) {
+        this.channel = channel;
+        this.key = key;
+        this.decoder = decoder;
+    }
+}
@@ -0,0 +1,78 @@
+package ru.spbau.voronchikhin;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backends and routing of the {@link Balancer}, set from command line options by field name.
+ * Routing is either "least", the healthy backend with the fewest requests in flight,
+ * or "hash", consistent hashing of the request frame so that equal requests go to the same backend
+ * and hit its response cache. A backend is ejected when it can not be reached, when a request
+ * waits on it longer than the request timeout, or when its average service time is over
+ * {@link #slowFactor} times the median of the healthy backends and over {@link #minSlowMillis}.
+ * It is probed again after {@link #ejectMillis}. Backends ejected as slow still take requests
+ * while no backend is healthy. Backend connections idle for longer than {@link #idleConnectionMillis}
+ * are closed before they are used again, it should be below the idle timeout of the backends.
+ */
+public class BalancerConfig {
+    public List<InetSocketAddress> backends = new ArrayList<>();
+    public String routing = "least";
+    public int connectionsPerBackend = 2;
+    public int maxInFlightPerClient = 64;
+    public long probeIntervalMillis = 1000;
+    public long requestTimeoutMillis = 5000;
+    public long ejectMillis = 5000;
+    public double slowFactor = 4;
+    public long minSlowMillis = 250;
+    public long idleConnectionMillis = 30000;
+
+    /**
+     * Sets a field by its name, used for command line options.
+     * Backends are given as {@code host:port,host:port}, a port alone means localhost.
+     *
+     * @return false if there is no such setting
+     */
+    public boolean set(String name, String value) {
+        switch (name) {
+            case "backends":
+                backends = new ArrayList<>();
+                for (String backend : value.split(",")) {
+                    int colon = backend.lastIndexOf(':');
+                    String host = colon < 0 ? "localhost" : backend.substring(0, colon);
+                    backends.add(new InetSocketAddress(host, Integer.parseInt(backend.substring(colon + 1))));
+                }
+                break;
+            case "routing":
+                routing = value;
+                break;
+            case "connectionsPerBackend":
+                connectionsPerBackend = Integer.parseInt(value);
+                break;
+            case "maxInFlightPerClient":
+                maxInFlightPerClient = Integer.parseInt(value);
+                break;
+            case "probeIntervalMillis":
+                probeIntervalMillis = Long.parseLong(value);
+                break;
+            case "requestTimeoutMillis":
+                requestTimeoutMillis = Long.parseLong(value);
+                break;
+            case "ejectMillis":
+                ejectMillis = Long.parseLong(value);
+                break;
+            case "slowFactor":
+                slowFactor = Double.parseDouble(value);
+                break;
+            case "minSlowMillis":
+                minSlowMillis = Long.parseLong(value);
+                break;
+            case "idleConnectionMillis":
+                idleConnectionMillis = Long.parseLong(value);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Responses of the binary protocol. A request frame is an opcode followed by the raw payload,
+ * the response is a status byte, the varint payload length and the payload.
+ * {@link #OP_REVERSE} answers with the payload bytes in reverse order,
+ * unknown opcodes and rejected requests get {@link #STATUS_FAILED} with an empty payload.
+ * A spilled payload is reversed in place in its mapped file a window at a time
+ * and sent back from the same file.
+ */
+final class BinaryCodec {
+    public static final byte OP_REVERSE = 1;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_FAILED = 1;
+    private static final int WINDOW = 64 * 1024;
+    private static final ByteBuffer FAILURE = failureResponse();
+    private static final ThreadLocal<BinaryCodec> codecs = new ThreadLocal<BinaryCodec>() {
+        @Override
+        protected BinaryCodec initialValue() {
+            return new BinaryCodec();
+        }
+    };
+
+    private byte[] scratch = new byte[1024];
+
+    /**
+     * @return shared read-only failure response
+     */
+    public static ByteBuffer failure() {
+        return FAILURE.duplicate();
+    }
+
+    private static ByteBuffer failureResponse() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2);
+        buffer.put(STATUS_FAILED).put((byte) 0);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Response for a request frame in a buffer leased from the pool.
+     */
+    public static ByteBuffer respond(ByteBuffer frame, BufferPool pool) {
+        if (frame.get(frame.position()) != OP_REVERSE) {
+            return failure();
+        }
+        ByteBuffer output = codecs.get().reverse(frame, pool);
+        InputProcessor.fib(20);
+        return output;
+    }
+
+    /**
+     * Response for a spilled request frame, takes the file of the frame over on success.
+     */
+    public static Object respond(SpilledFrame frame, BufferPool pool) throws IOException {
+        if (frame.opcode != OP_REVERSE) {
+            return failure();
+        }
+        final int length = (int) frame.size();
+        MappedByteBuffer payload = frame.map(FileChannel.MapMode.READ_WRITE);
+        codecs.get().reverseInPlace(payload);
+        ByteBuffer header = pool.acquire(1 + varintSize(length));
+        header.put(STATUS_OK);
+        putVarint(header, length);
+        header.flip();
+        InputProcessor.fib(20);
+        return new FileRegion(header, frame.takeFile(), 0, length);
+    }
+
+    /**
+     * Swaps reversed windows from both ends towards the middle, only two windows are on the heap at a time.
+     */
+    private void reverseInPlace(ByteBuffer payload) {
+        if (scratch.length < 2 * WINDOW) {
+            scratch = new byte[2 * WINDOW];
+        }
+        int front = payload.position();
+        int back = payload.limit();
+        while (back - front >= 2 * WINDOW) {
+            payload.position(front);
+            payload.get(scratch, 0, WINDOW);
+            payload.position(back - WINDOW);
+            payload.get(scratch, WINDOW, WINDOW);
+            reverse(scratch, 0, WINDOW);
+            reverse(scratch, WINDOW, WINDOW);
+            payload.position(front);
+            payload.put(scratch, WINDOW, WINDOW);
+            payload.position(back - WINDOW);
+            payload.put(scratch, 0, WINDOW);
+            front += WINDOW;
+            back -= WINDOW;
+        }
+        final int rest = back - front;
+        payload.position(front);
+        payload.get(scratch, 0, rest);
+        reverse(scratch, 0, rest);
+        payload.position(front);
+        payload.put(scratch, 0, rest);
+    }
+
+    private static void reverse(byte[] bytes, int offset, int length) {
+        for (int i = offset, j = offset + length - 1; i < j; ++i, --j) {
+            byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+    }
+
+    private ByteBuffer reverse(ByteBuffer frame, BufferPool pool) {
+        final int length = frame.remaining() - 1;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length << 1)];
+        }
+        ByteBuffer payload = frame.duplicate();
+        payload.position(payload.position() + 1);
+        payload.get(scratch, 0, length);
+        reverse(scratch, 0, length);
+        ByteBuffer output = pool.acquire(1 + varintSize(length) + length);
+        output.put(STATUS_OK);
+        putVarint(output, length);
+        output.put(scratch, 0, length);
+        output.flip();
+        return output;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            ++size;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
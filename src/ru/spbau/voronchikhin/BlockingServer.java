@@ -0,0 +1,219 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thread per connection server with plain blocking reads and writes.
+ * Uses a virtual thread per connection where the JDK has them (21+) and a cached pool of
+ * platform threads otherwise. Requests of a connection are processed on its own thread,
+ * so responses keep the request order and nothing queues behind a fixed pool.
+ */
+public class BlockingServer implements Engine {
+    private static final AsyncLog.Topic EXECUTION_FAILED = AsyncLog.topic("failed execution ");
+    private static final AsyncLog.Topic CONNECTION_FAILED = AsyncLog.topic("Connection failed :");
+    private static final AsyncLog.Topic ACCEPT_FAILED = AsyncLog.topic("Failed on acception :");
+    private static final AsyncLog.Topic NO_VIRTUAL_THREADS = AsyncLog.topic("virtual threads are not available, using platform threads");
+
+    private final ServerConfig config;
+    private final int serverPort;
+    private final ExecutorService connectionThreads = newConnectionExecutor();
+    private final BufferPool bufferPool = new BufferPool(false);
+    private final AdmissionControl admission;
+    private final ServerStats stats = new ServerStats();
+    private ResponseCache cache;
+    private TraceWriter capture;
+    private int statsPort = 0;
+
+    public BlockingServer(int port) {
+        this(port, new AdmissionControl());
+    }
+
+    public BlockingServer(int port, AdmissionControl admission) {
+        this(config(port), admission);
+    }
+
+    /**
+     * Listener count, reactor count and worker count of the config do not apply, every connection has a thread.
+     */
+    public BlockingServer(ServerConfig config, AdmissionControl admission) {
+        this.config = config;
+        this.serverPort = config.port;
+        this.admission = admission;
+        stats.watch(bufferPool, admission);
+    }
+
+    private static ServerConfig config(int port) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        return config;
+    }
+
+    /**
+     * Serves the plain text stats report on {@code port} as well, 0 turns it off.
+     */
+    @Override
+    public void setStatsPort(int port) {
+        this.statsPort = port;
+    }
+
+    /**
+     * Serves repeated requests from the cache, has to be called before {@link #run}.
+     */
+    @Override
+    public void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+        stats.watch(cache);
+    }
+
+    /**
+     * Copies every incoming frame to the trace, has to be called before {@link #run}.
+     * Spilled frames are not captured.
+     */
+    @Override
+    public void setCapture(TraceWriter capture) {
+        this.capture = capture;
+        stats.watch(capture);
+    }
+
+    @Override
+    public void run() {
+        System.out.println("blocking server started on port " + serverPort);
+        try (ServerSocketChannel serverSocketChannel = config.openListener()) {
+            stats.register("blocking-" + serverPort);
+            if (statsPort > 0) {
+                new StatsServer(statsPort, stats).start();
+            }
+            while (serverSocketChannel.isOpen()) {
+                final SocketChannel socketChannel;
+                try {
+                    socketChannel = serverSocketChannel.accept();
+                } catch (IOException e) {
+                    // out of descriptors or an aborted connection, the listener itself is still fine
+                    ACCEPT_FAILED.log(e.getMessage());
+                    continue;
+                }
+                connectionThreads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socketChannel);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            EXECUTION_FAILED.log(e.getMessage());
+        } finally {
+            connectionThreads.shutdownNow();
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    @Override
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    private void serve(SocketChannel socketChannel) {
+        FrameDecoder decoder = new FrameDecoder(bufferPool, admission.maxFrameSize,
+                admission.spillThreshold, admission.maxSpilledFrameSize);
+        final long connectionId = Connection.nextId();
+        stats.connectionOpened();
+        try {
+            config.configure(socketChannel);
+            int read;
+            while ((read = socketChannel.read(decoder.readBuffer())) >= 0) {
+                stats.bytesRead(read);
+                ByteBuffer frame;
+                while ((frame = decoder.nextFrame()) != null) {
+                    stats.request();
+                    Object output;
+                    boolean binary = decoder.isBinary();
+                    SpilledFrame spilled = frame == FrameDecoder.SPILLED ? decoder.takeSpilled() : null;
+                    if (capture != null && frame != FrameDecoder.TOO_LARGE && spilled == null) {
+                        capture.capture(connectionId, binary, frame);
+                    }
+                    if (frame == FrameDecoder.TOO_LARGE) {
+                        admission.oversizedFrame();
+                        stats.failure();
+                        output = binary ? BinaryCodec.failure() : JsonCodec.failure();
+                    } else if (!admission.tryAcquire()) {
+                        if (spilled != null) {
+                            spilled.close();
+                        } else {
+                            bufferPool.release(frame);
+                        }
+                        stats.failure();
+                        output = binary ? BinaryCodec.failure() : JsonCodec.failure();
+                    } else if (spilled != null) {
+                        admission.spilledFrame();
+                        long startedAt = System.nanoTime();
+                        try {
+                            output = Worker.respond(spilled, bufferPool, stats);
+                        } finally {
+                            admission.release();
+                        }
+                        stats.process.record(System.nanoTime() - startedAt);
+                    } else {
+                        long startedAt = System.nanoTime();
+                        try {
+                            // a failed request is answered with the failure response, as on the reactors
+                            output = Worker.respond(frame, binary, bufferPool, stats, cache);
+                        } finally {
+                            admission.release();
+                        }
+                        stats.process.record(System.nanoTime() - startedAt);
+                    }
+                    long writeStartedAt = System.nanoTime();
+                    try {
+                        stats.bytesWritten(FileRegion.remaining(output));
+                        if (output instanceof FileRegion) {
+                            FileRegion region = (FileRegion) output;
+                            while (region.remaining() > 0) {
+                                region.writeTo(socketChannel, Long.MAX_VALUE);
+                            }
+                        } else {
+                            ByteBuffer buffer = (ByteBuffer) output;
+                            while (buffer.hasRemaining()) {
+                                socketChannel.write(buffer);
+                            }
+                        }
+                    } finally {
+                        FileRegion.release(output, bufferPool);
+                    }
+                    stats.write.record(System.nanoTime() - writeStartedAt);
+                }
+            }
+        } catch (IOException e) {
+            CONNECTION_FAILED.log(e.getMessage());
+        } finally {
+            stats.connectionClosed();
+            decoder.close();
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            NO_VIRTUAL_THREADS.log();
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.spbau.voronchikhin;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers in power of two size classes.
+ * Every thread keeps a small cache per class and spills to / refills from a bounded shared pool,
+ * so buffers acquired on one thread and released on another still get reused.
+ * Requests above the largest class get a plain heap buffer that is never pooled.
+ * Read-only buffers are never handed out, so releasing one is a no-op.
+ * Thread local caches can be turned off for short lived threads, their cached buffers would be lost.
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 22;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] shared;
+    private final boolean localCaches;
+    private final ThreadLocal<LocalCache> local = new ThreadLocal<LocalCache>() {
+        @Override
+        protected LocalCache initialValue() {
+            return new LocalCache();
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+
+    public BufferPool() {
+        this(true);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean localCaches) {
+        this.localCaches = localCaches;
+        shared = new ArrayBlockingQueue[CLASSES];
+        for (int i = 0; i < CLASSES; ++i) {
+            shared[i] = new ArrayBlockingQueue<>(Math.max(4, (1 << MAX_SHIFT) >> (i + MIN_SHIFT)));
+        }
+    }
+
+    /**
+     * @return cleared buffer with the limit set to {@code size}, must be given back with {@link #release}
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        outstanding.increment();
+        if (sizeClass >= CLASSES) {
+            misses.increment();
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = localCaches ? local.get().poll(sizeClass) : null;
+        if (buffer == null) {
+            buffer = shared[sizeClass].poll();
+        }
+        if (buffer == null) {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        } else {
+            hits.increment();
+            buffer.clear();
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.isReadOnly()) {
+            return;
+        }
+        outstanding.decrement();
+        if (!buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < CLASSES && !(localCaches && local.get().offer(sizeClass, buffer))) {
+            shared[sizeClass].offer(buffer);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getOutstanding() {
+        return outstanding.sum();
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static final class LocalCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[CLASSES][];
+        private final int[] sizes = new int[CLASSES];
+
+        LocalCache() {
+            for (int i = 0; i < CLASSES; ++i) {
+                stacks[i] = new ByteBuffer[Math.min(32, Math.max(1, (1 << 18) >> (i + MIN_SHIFT)))];
+            }
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            if (sizes[sizeClass] == 0) {
+                return null;
+            }
+            ByteBuffer buffer = stacks[sizeClass][--sizes[sizeClass]];
+            stacks[sizeClass][sizes[sizeClass]] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (sizes[sizeClass] == stacks[sizeClass].length) {
+                return false;
+            }
+            stacks[sizeClass][sizes[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
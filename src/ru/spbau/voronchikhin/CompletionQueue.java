@@ -0,0 +1,39 @@
+package ru.spbau.voronchikhin;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer single-consumer queue of finished workers.
+ * Producers push onto a Treiber stack linked through {@link Worker#next},
+ * the reactor takes the whole stack at once and restores push order.
+ */
+final class CompletionQueue {
+    private final AtomicReference<Worker> top = new AtomicReference<>();
+
+    /**
+     * @return true if the queue was empty, then the consumer has to be woken up
+     */
+    public boolean push(Worker worker) {
+        Worker current;
+        do {
+            current = top.get();
+            worker.next = current;
+        } while (!top.compareAndSet(current, worker));
+        return current == null;
+    }
+
+    /**
+     * @return all pushed workers in push order linked through {@link Worker#next}, or null
+     */
+    public Worker drain() {
+        Worker worker = top.getAndSet(null);
+        Worker ordered = null;
+        while (worker != null) {
+            Worker next = worker.next;
+            worker.next = ordered;
+            ordered = worker;
+            worker = next;
+        }
+        return ordered;
+    }
+}
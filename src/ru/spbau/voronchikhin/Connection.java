@@ -0,0 +1,50 @@
+package ru.spbau.voronchikhin;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of one client connection, attached to its selection key.
+ * Only the owning reactor thread touches it. It is its own timer on the reactor timing wheel,
+ * reads and writes only move the timestamps, the timeouts are checked when the timer fires.
+ */
+class Connection extends TimingWheel.Timer {
+    private static final AtomicLong ids = new AtomicLong();
+
+    public final long id = nextId();
+    public final Reactor reactor;
+    public final SelectionKey key;
+    public final FrameDecoder decoder;
+    public final OutputQueue output = new OutputQueue(id);
+    public final ReorderBuffer pending = new ReorderBuffer();
+    int inFlight = 0;
+    boolean readPaused = false;
+    long frameStartedAt;
+    long lastReadAt;
+    long lastWriteAt;
+
+    public Connection(Reactor reactor, SelectionKey key) {
+        this.reactor = reactor;
+        this.key = key;
+        this.decoder = new FrameDecoder(reactor.pool, reactor.admission.maxFrameSize,
+                reactor.admission.spillThreshold, reactor.admission.maxSpilledFrameSize);
+    }
+
+    /**
+     * @return id for a new connection, unique within the process, used in captured traces
+     */
+    static long nextId() {
+        return ids.incrementAndGet();
+    }
+
+    @Override
+    void expire(long now) {
+        reactor.expire(this, now);
+    }
+
+    public void release() {
+        decoder.close();
+        pending.release(reactor.pool);
+        output.release(reactor.pool);
+    }
+}
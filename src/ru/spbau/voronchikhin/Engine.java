@@ -0,0 +1,29 @@
+package ru.spbau.voronchikhin;
+
+/**
+ * A server that speaks the text and binary protocols on its port, {@link Main} picks one by name.
+ * The setters have to be called before {@link #run}.
+ */
+public interface Engine {
+    /**
+     * Serves the plain text stats report on {@code port} as well, 0 turns it off.
+     */
+    void setStatsPort(int port);
+
+    /**
+     * Serves repeated requests from the cache.
+     */
+    void setResponseCache(ResponseCache cache);
+
+    /**
+     * Copies every incoming frame to the trace, spilled frames are not captured.
+     */
+    void setCapture(TraceWriter capture);
+
+    ServerStats getStats();
+
+    /**
+     * Serves until the process ends.
+     */
+    void run();
+}
@@ -0,0 +1,111 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Response that lives in a file: an optional header buffer followed by a range of the file,
+ * which goes to the socket with {@link FileChannel#transferTo} without passing through the heap.
+ * Responses are handed around as plain objects that are either a {@link ByteBuffer} or a FileRegion,
+ * the static helpers work on both.
+ */
+final class FileRegion {
+    private static final AsyncLog.Topic DROP_FAILED = AsyncLog.topic("failed to drop response file ");
+    private final ByteBuffer header;
+    private final FileChannel file;
+    private long position;
+    private final long end;
+
+    public FileRegion(ByteBuffer header, FileChannel file, long position, long count) {
+        this.header = header;
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    public long remaining() {
+        return (header != null ? header.remaining() : 0) + end - position;
+    }
+
+    /**
+     * Writes until the channel takes nothing more or {@code limit} bytes are written.
+     *
+     * @return number of bytes written
+     */
+    public long writeTo(WritableByteChannel channel, long limit) throws IOException {
+        long written = 0;
+        if (header != null && header.hasRemaining()) {
+            written = channel.write(header);
+            if (header.hasRemaining()) {
+                return written;
+            }
+        }
+        while (position < end && written < limit) {
+            long transferred = file.transferTo(position, Math.min(end - position, limit - written), channel);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            written += transferred;
+        }
+        return written;
+    }
+
+    /**
+     * Copies as much of the region as fits into the buffer, for channels that can not take a transfer.
+     *
+     * @return number of bytes copied
+     */
+    public int readInto(ByteBuffer out) throws IOException {
+        int copied = 0;
+        if (header != null && header.hasRemaining()) {
+            int count = Math.min(header.remaining(), out.remaining());
+            ByteBuffer slice = header.duplicate();
+            slice.limit(slice.position() + count);
+            out.put(slice);
+            header.position(header.position() + count);
+            copied = count;
+        }
+        while (position < end && out.hasRemaining()) {
+            int limit = out.limit();
+            out.limit((int) Math.min(limit, out.position() + end - position));
+            int read;
+            try {
+                read = file.read(out, position);
+            } finally {
+                out.limit(limit);
+            }
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+            copied += read;
+        }
+        return copied;
+    }
+
+    public void release(BufferPool pool) {
+        if (header != null) {
+            pool.release(header);
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            DROP_FAILED.log(e.getMessage());
+        }
+    }
+
+    public static long remaining(Object response) {
+        return response instanceof FileRegion ? ((FileRegion) response).remaining() : ((ByteBuffer) response).remaining();
+    }
+
+    public static void release(Object response, BufferPool pool) {
+        if (response instanceof FileRegion) {
+            ((FileRegion) response).release(pool);
+        } else {
+            pool.release((ByteBuffer) response);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the byte stream of one connection into frames.
+ * A connection that starts with {@link #BINARY_MAGIC} speaks the binary protocol: every frame is
+ * a varint payload length, an opcode and the payload, and is handed out as opcode plus payload.
+ * Any other connection sends "endl" terminated text frames, every byte is scanned for the delimiter
+ * once, even if the delimiter is split between reads.
+ * Only the unfinished tail is kept between reads. The accumulation buffer is leased from
+ * the pool only while there is something to keep, frames are handed out in pooled buffers too.
+ * Frames over the spill threshold are streamed into a temporary file as they arrive and reported
+ * as {@link #SPILLED}, so memory stays bounded whatever the frame size. Frames over the limit
+ * are skipped and reported as {@link #TOO_LARGE}, a malformed binary length makes the decoder
+ * drop the rest of the stream.
+ */
+class FrameDecoder {
+    private static final AsyncLog.Topic SPILL_FAILED = AsyncLog.topic("failed to spill a frame ");
+    public static final ByteBuffer TOO_LARGE = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    public static final ByteBuffer SPILLED = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    public static final byte BINARY_MAGIC = (byte) 0xB1;
+    private static final int DELIMITER_LENGTH = 4;
+    private static final int READ_SIZE = 8192;
+    // a spilled frame is mapped as a whole
+    private static final long MAX_SPILLED_FRAME_SIZE = Integer.MAX_VALUE - 64;
+
+    private final BufferPool pool;
+    private final int memoryLimit;
+    private final long maxSpilledFrameSize;
+    private SpilledFrame spill;
+    private long spillRemaining = 0;
+    private SpilledFrame spilled;
+    private boolean negotiated = false;
+    private boolean binary = false;
+    private long skipping = 0;
+    private int needed = 0;
+    private boolean discarding = false;
+    private ByteBuffer buffer;
+    private ByteBuffer view;
+    private int start = 0;
+    private int scanned = 0;
+
+    public FrameDecoder(BufferPool pool, int maxFrameSize) {
+        this(pool, maxFrameSize, 0, 0);
+    }
+
+    /**
+     * @param spillThreshold      frames longer than this go to a temporary file instead of memory, 0 never spills
+     * @param maxSpilledFrameSize longest frame accepted when spilling
+     */
+    public FrameDecoder(BufferPool pool, int maxFrameSize, int spillThreshold, long maxSpilledFrameSize) {
+        this.pool = pool;
+        boolean spills = spillThreshold > 0 && maxSpilledFrameSize > 0;
+        this.memoryLimit = spills ? Math.min(maxFrameSize, spillThreshold) : maxFrameSize;
+        this.maxSpilledFrameSize = spills ? Math.min(maxSpilledFrameSize, MAX_SPILLED_FRAME_SIZE) : 0;
+    }
+
+    /**
+     * @return buffer to read new data into, always has free space
+     */
+    public ByteBuffer readBuffer() {
+        if (buffer == null) {
+            setBuffer(pool.acquire(READ_SIZE));
+        } else if (buffer.position() == buffer.capacity()) {
+            if (start > 0) {
+                compact();
+            } else {
+                ByteBuffer bigger = pool.acquire(Math.max(buffer.capacity() << 1, needed));
+                buffer.flip();
+                bigger.put(buffer);
+                pool.release(buffer);
+                setBuffer(bigger);
+            }
+        }
+        buffer.limit(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * @return next complete frame without the delimiter, {@link #TOO_LARGE}, {@link #SPILLED}
+     * or null if there is none yet, the frame has to be released to the pool
+     */
+    public ByteBuffer nextFrame() {
+        if (buffer == null || buffer.position() == start) {
+            return null;
+        }
+        if (!negotiated) {
+            negotiated = true;
+            if (buffer.get(start) == BINARY_MAGIC) {
+                binary = true;
+                scanned = ++start;
+            }
+        }
+        return binary ? nextLengthPrefixedFrame() : nextDelimitedFrame();
+    }
+
+    /**
+     * @return the frame reported as {@link #SPILLED}, the caller has to close it
+     */
+    public SpilledFrame takeSpilled() {
+        SpilledFrame frame = spilled;
+        spilled = null;
+        return frame;
+    }
+
+    /**
+     * @return true if the connection speaks the binary protocol
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    private ByteBuffer nextDelimitedFrame() {
+        int end = findDelimiter();
+        if (spill != null) {
+            // everything up to the delimiter or up to what may be its beginning goes to the file
+            int until = end >= 0 ? end : buffer.position() - (DELIMITER_LENGTH - 1);
+            boolean spilling = until <= start || spillRange(start, until);
+            if (end < 0) {
+                start = Math.max(start, until);
+                scanned = Math.max(scanned, start);
+                discarding = !spilling;
+                return null;
+            }
+            start = scanned = end + DELIMITER_LENGTH;
+            return spilling ? finishSpill() : TOO_LARGE;
+        }
+        if (end < 0) {
+            if (buffer.position() - start - (DELIMITER_LENGTH - 1) > memoryLimit) {
+                // keep only what may be the beginning of the delimiter
+                int until = buffer.position() - (DELIMITER_LENGTH - 1);
+                discarding = discarding || !startSpill(false, (byte) 0) || !spillRange(start, until);
+                start = scanned = until;
+            }
+            if (start == buffer.position()) {
+                release();
+            }
+            return null;
+        }
+        if (!discarding && end - start > memoryLimit && startSpill(false, (byte) 0) && spillRange(start, end)) {
+            start = scanned = end + DELIMITER_LENGTH;
+            return finishSpill();
+        }
+        if (discarding || end - start > memoryLimit) {
+            discarding = false;
+            start = scanned = end + DELIMITER_LENGTH;
+            return TOO_LARGE;
+        }
+        ByteBuffer frame = pool.acquire(end - start);
+        view.limit(end).position(start);
+        frame.put(view);
+        frame.flip();
+        start = end + DELIMITER_LENGTH;
+        scanned = start;
+        return frame;
+    }
+
+    private ByteBuffer nextLengthPrefixedFrame() {
+        if (spill != null) {
+            int count = (int) Math.min(spillRemaining, buffer.position() - start);
+            boolean spilling = spillRange(start, start + count);
+            start += count;
+            spillRemaining -= count;
+            if (!spilling) {
+                skipping = spillRemaining;
+                spillRemaining = 0;
+                return TOO_LARGE;
+            } else if (spillRemaining == 0) {
+                return finishSpill();
+            }
+            if (start == buffer.position()) {
+                release();
+            }
+            return null;
+        }
+        if (skipping > 0) {
+            int skipped = (int) Math.min(skipping, buffer.position() - start);
+            start += skipped;
+            skipping -= skipped;
+        }
+        int length = 0;
+        int i = start;
+        for (int shift = 0; skipping == 0; shift += 7) {
+            if (i == buffer.position()) {
+                break;
+            }
+            byte b = buffer.get(i++);
+            length |= (b & 0x7F) << shift;
+            if (shift == 28 && (b & 0xF8) != 0) {
+                skipping = Long.MAX_VALUE;
+                start = buffer.position();
+                return TOO_LARGE;
+            } else if (b >= 0) {
+                if (length > memoryLimit) {
+                    if (length <= maxSpilledFrameSize) {
+                        if (i == buffer.position()) {
+                            // the opcode has not arrived yet
+                            return null;
+                        }
+                        if (startSpill(true, buffer.get(i))) {
+                            start = i + 1;
+                            spillRemaining = length;
+                            return nextLengthPrefixedFrame();
+                        }
+                    }
+                    skipping = length + 1L;
+                    start = i;
+                    return TOO_LARGE;
+                }
+                int end = i + 1 + length;
+                if (end > buffer.position()) {
+                    needed = end - start;
+                    return null;
+                }
+                ByteBuffer frame = pool.acquire(length + 1);
+                view.limit(end).position(i);
+                frame.put(view);
+                frame.flip();
+                start = end;
+                needed = 0;
+                return frame;
+            }
+        }
+        if (start == buffer.position()) {
+            release();
+        }
+        return null;
+    }
+
+    /**
+     * @return true if part of a frame is waiting for the rest of its bytes
+     */
+    public boolean hasUnfinished() {
+        return spill != null || buffer != null && buffer.position() > start;
+    }
+
+    /**
+     * Gives the accumulation buffer back to the pool, the unfinished tail is dropped.
+     * The negotiated protocol, a frame being spilled and the rest of a skipped binary frame are remembered.
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            view = null;
+        }
+        start = scanned = 0;
+        discarding = false;
+    }
+
+    /**
+     * Releases the buffer and deletes the spilled frames, for a connection that is closed.
+     */
+    public void close() {
+        release();
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        if (spilled != null) {
+            spilled.close();
+            spilled = null;
+        }
+    }
+
+    private boolean startSpill(boolean binaryFrame, byte opcode) {
+        if (maxSpilledFrameSize == 0) {
+            return false;
+        }
+        try {
+            spill = SpilledFrame.create(binaryFrame, opcode);
+            return true;
+        } catch (IOException e) {
+            SPILL_FAILED.log(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Appends bytes of the buffer to the frame being spilled, drops the frame if it gets too long or the write fails.
+     *
+     * @return false if the frame was dropped
+     */
+    private boolean spillRange(int from, int to) {
+        try {
+            view.limit(to).position(from);
+            spill.append(view);
+            if (spill.size() <= maxSpilledFrameSize) {
+                return true;
+            }
+        } catch (IOException e) {
+            SPILL_FAILED.log(e.getMessage());
+        }
+        spill.close();
+        spill = null;
+        return false;
+    }
+
+    private ByteBuffer finishSpill() {
+        spilled = spill;
+        spill = null;
+        return SPILLED;
+    }
+
+    private void setBuffer(ByteBuffer newBuffer) {
+        buffer = newBuffer;
+        view = newBuffer.duplicate();
+    }
+
+    private int findDelimiter() {
+        final int last = buffer.position() - DELIMITER_LENGTH;
+        for (int i = Math.max(scanned, start); i <= last; ++i) {
+            if (buffer.get(i + 3) == 'l' && buffer.get(i) == 'e' && buffer.get(i + 1) == 'n' && buffer.get(i + 2) == 'd') {
+                return i;
+            }
+        }
+        scanned = Math.max(start, last + 1);
+        return -1;
+    }
+
+    private void compact() {
+        buffer.flip();
+        buffer.position(start);
+        buffer.compact();
+        scanned -= start;
+        start = 0;
+    }
+}
@@ -7,6 +7,8 @@ import org.json.simple.parser.JSONParser;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -14,6 +16,16 @@ import java.util.Map;
  * Created by s on 26.01.15.
  */
 public class InputProcessor {
+    private static final AsyncLog.Topic PARSE_FAILED = AsyncLog.topic("failed on parsing response ");
+    private static final AsyncLog.Topic SPILLED_PARSE_FAILED = AsyncLog.topic("failed on parsing spilled request, bytes ");
+    private static final AsyncLog.Topic RESPONSE_FAILED = AsyncLog.topic("failed response!");
+    private static final ThreadLocal<JsonCodec> codecs = new ThreadLocal<JsonCodec>() {
+        @Override
+        protected JsonCodec initialValue() {
+            return new JsonCodec();
+        }
+    };
+
     private JSONParser parser = new JSONParser();
     String data;
     private boolean status;
@@ -25,21 +37,74 @@ public class InputProcessor {
             data = (String) json.get("data");
             status = true;
         } catch (Throwable e) {
-            System.err.println("failed on parsing response "+input +" " +e.getMessage());
+            PARSE_FAILED.log(input);
             data = null;
             status = false;
         }
     }
 
+    /**
+     * Response for a raw request frame in a buffer leased from the pool. Tries {@link JsonCodec} first
+     * and falls back to json-simple for requests the codec does not recognise.
+     */
+    public static ByteBuffer respond(ByteBuffer request, BufferPool pool) throws IOException {
+        JsonCodec codec = codecs.get();
+        int size = codec.parse(request);
+        if (size < 0) {
+            ByteBuffer response = new InputProcessor(toString(request)).getResponse();
+            ByteBuffer output = pool.acquire(response.remaining());
+            output.put(response);
+            output.flip();
+            return output;
+        }
+        ByteBuffer output = pool.acquire(size);
+        codec.writeResponse(output);
+        output.flip();
+        fib(20);
+        return output;
+    }
+
+    /**
+     * Response for a spilled request frame, built in a mapped temporary file and sent from there.
+     * Only the plain {"data":"..."} shape is accepted, anything else is answered with {"status":false}.
+     */
+    public static Object respond(SpilledFrame frame) throws IOException {
+        JsonCodec codec = codecs.get();
+        MappedByteBuffer request = frame.map(FileChannel.MapMode.READ_ONLY);
+        int size = codec.parseLarge(request);
+        if (size < 0) {
+            SPILLED_PARSE_FAILED.log(Long.toString(frame.size()));
+            return JsonCodec.failure();
+        }
+        FileChannel file = SpilledFrame.openTemporary();
+        try {
+            codec.writeLarge(request, file.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        fib(20);
+        return new FileRegion(null, file, 0, size);
+    }
+
+    private static String toString(ByteBuffer request) {
+        if (request.hasArray()) {
+            return new String(request.array(), request.arrayOffset() + request.position(), request.remaining());
+        }
+        byte[] bytes = new byte[request.remaining()];
+        request.duplicate().get(bytes);
+        return new String(bytes);
+    }
+
     public ByteBuffer getResponse() throws IOException {
         Map obj = new LinkedHashMap();
         if (data!=null) {
-            String reversed = new StringBuilder(data).reverse().toString();
+            String reversed = ParallelReverse.reverse(data);
             obj.put("data", reversed);
         }
         obj.put("status", status);
         if(!status){
-            System.err.println("failed response!");
+            RESPONSE_FAILED.log();
         }
         StringWriter out = new StringWriter();
         JSONValue.writeJSONString(obj, out);
@@ -48,7 +113,7 @@ public class InputProcessor {
         return ByteBuffer.wrap(jsonText.getBytes());
     }
 
-    int fib(int n)
+    static int fib(int n)
     {
         if (n == 0) { return 0; }
         else
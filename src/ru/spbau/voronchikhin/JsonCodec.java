@@ -0,0 +1,708 @@
+package ru.spbau.voronchikhin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Byte level codec for the {"data":"..."} protocol.
+ * Finds the "data" string right in the UTF-8 request bytes and writes the
+ * {"data":"&lt;reversed&gt;","status":true} response straight into the output buffer,
+ * escaping it the same way json-simple does. The request is copied into a scratch array once and the
+ * response is built in another one, per byte access to direct buffers is much slower than to arrays.
+ * Nothing is allocated per request once the scratch arrays have grown, an instance keeps the state
+ * between {@link #parse} and {@link #writeResponse}, so it is not thread safe.
+ * Anything but a flat object with a string "data" member is left to json-simple.
+ * A spilled request is handled by {@link #parseLarge} and {@link #writeLarge}, which walk the
+ * mapped request a window at a time and accept only a lone "data" member.
+ * Data as long as the {@link ParallelReverse} threshold is cut into windows on code point boundaries
+ * while it is parsed, and the windows are reversed on the fork/join pool of {@link ParallelReverse};
+ * a code point, surrogate pairs and escapes included, is never split, so every window is written
+ * like a small response of its own.
+ */
+final class JsonCodec {
+    private static final byte[] PREFIX = "{\"data\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUFFIX = "\",\"status\":true}\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer FAILURE = readOnly("{\"status\":false}\n");
+    private static final byte[] DATA_KEY = "\"data\"".getBytes(StandardCharsets.US_ASCII);
+    private static final int WINDOW = 64 * 1024;
+    // longest escape or UTF-8 sequence that a code point starting in a window may take
+    private static final int LOOKAHEAD = 12;
+    // a response longer than this can not be mapped
+    private static final long MAX_LARGE_RESPONSE = Integer.MAX_VALUE;
+
+    private byte[] input = new byte[1024];
+    private byte[] output = new byte[1024];
+    private int dataStart;
+    private int dataEnd;
+    private int dataLength;
+    private int next;
+    // window starts in the data and the response bytes of the data before them, the data end closes the last one
+    private int[] markInput = new int[16];
+    private int[] markOutput = new int[16];
+    private int marks;
+
+    /**
+     * @return shared read-only {"status":false} response
+     */
+    public static ByteBuffer failure() {
+        return FAILURE.duplicate();
+    }
+
+    private static ByteBuffer readOnly(String response) {
+        byte[] bytes = response.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return exact size of the response for this request or -1 if the request is not recognised
+     */
+    public int parse(ByteBuffer request) {
+        final int limit = request.remaining();
+        if (input.length < limit) {
+            input = new byte[Math.max(limit, input.length << 1)];
+        }
+        request.duplicate().get(input, 0, limit);
+        final byte[] in = input;
+        dataStart = -1;
+        int i = skipWhitespace(in, 0, limit);
+        if (i >= limit || in[i] != '{') {
+            return -1;
+        }
+        i = skipWhitespace(in, i + 1, limit);
+        while (true) {
+            if (i >= limit || in[i] != '"') {
+                return -1;
+            }
+            int keyEnd = scanString(in, i + 1, limit);
+            if (keyEnd < 0) {
+                return -1;
+            }
+            if (hasEscapes(in, i + 1, keyEnd)) {
+                return -1;
+            }
+            boolean isData = isDataKey(in, i + 1, keyEnd);
+            i = skipWhitespace(in, keyEnd + 1, limit);
+            if (i >= limit || in[i] != ':') {
+                return -1;
+            }
+            i = skipWhitespace(in, i + 1, limit);
+            if (i >= limit) {
+                return -1;
+            }
+            if (in[i] == '"') {
+                int valueEnd = scanString(in, i + 1, limit);
+                if (valueEnd < 0) {
+                    return -1;
+                }
+                if (isData) {
+                    dataStart = i + 1;
+                    dataEnd = valueEnd;
+                }
+                i = valueEnd + 1;
+            } else if (isData) {
+                return -1;
+            } else if ((i = skipScalar(in, i, limit)) < 0) {
+                return -1;
+            }
+            i = skipWhitespace(in, i, limit);
+            if (i >= limit) {
+                return -1;
+            }
+            byte b = in[i];
+            if (b == '}') {
+                break;
+            } else if (b != ',') {
+                return -1;
+            }
+            i = skipWhitespace(in, i + 1, limit);
+        }
+        if (dataStart < 0 || skipWhitespace(in, i + 1, limit) != limit) {
+            return -1;
+        }
+        dataLength = 0;
+        marks = 0;
+        int nextMark = ParallelReverse.isParallel(dataEnd - dataStart) ? dataStart : Integer.MAX_VALUE;
+        for (int j = dataStart; j < dataEnd; j = next) {
+            if (j >= nextMark) {
+                mark(j, dataLength);
+                nextMark = j + WINDOW;
+            }
+            if (isPlain(in[j])) {
+                ++dataLength;
+                next = j + 1;
+                continue;
+            }
+            int codePoint = decode(in, j, dataEnd);
+            if (codePoint < 0) {
+                return -1;
+            }
+            dataLength += escapedLength(codePoint);
+        }
+        if (marks > 0) {
+            mark(dataEnd, dataLength);
+        }
+        return PREFIX.length + dataLength + SUFFIX.length;
+    }
+
+    private void mark(int input, long length) {
+        if (marks == markInput.length) {
+            markInput = Arrays.copyOf(markInput, marks << 1);
+            markOutput = Arrays.copyOf(markOutput, marks << 1);
+        }
+        markInput[marks] = input;
+        markOutput[marks] = (int) length;
+        ++marks;
+    }
+
+    /**
+     * Writes the response for the request accepted by the last {@link #parse} call.
+     */
+    public void writeResponse(ByteBuffer out) {
+        int size = PREFIX.length + dataLength + SUFFIX.length;
+        if (marks > 2) {
+            writeParallel(ByteBuffer.wrap(input), out);
+            out.position(out.position() + size);
+            return;
+        }
+        if (output.length < size) {
+            output = new byte[Math.max(size, output.length << 1)];
+        }
+        System.arraycopy(PREFIX, 0, output, 0, PREFIX.length);
+        int pos = PREFIX.length + dataLength;
+        final byte[] in = input;
+        for (int j = dataStart; j < dataEnd; j = next) {
+            byte b = in[j];
+            if (isPlain(b)) {
+                output[--pos] = b;
+                next = j + 1;
+                continue;
+            }
+            int codePoint = decode(in, j, dataEnd);
+            pos -= escapedLength(codePoint);
+            putEscaped(output, pos, codePoint);
+        }
+        System.arraycopy(SUFFIX, 0, output, PREFIX.length + dataLength, SUFFIX.length);
+        out.put(output, 0, size);
+    }
+
+    /**
+     * Checks a request too big for the scratch arrays, see {@link #parse}.
+     *
+     * @return exact size of the response or -1 if the request is not a lone {"data":"..."} object
+     */
+    public int parseLarge(ByteBuffer request) {
+        final int limit = request.limit();
+        int i = skipWhitespace(request, request.position(), limit);
+        if (i >= limit || request.get(i) != '{') {
+            return -1;
+        }
+        i = skipWhitespace(request, i + 1, limit);
+        for (byte b : DATA_KEY) {
+            if (i >= limit || request.get(i++) != b) {
+                return -1;
+            }
+        }
+        i = skipWhitespace(request, i, limit);
+        if (i >= limit || request.get(i) != ':') {
+            return -1;
+        }
+        i = skipWhitespace(request, i + 1, limit);
+        if (i >= limit || request.get(i) != '"') {
+            return -1;
+        }
+        dataStart = i + 1;
+        int j = skipWhitespaceBackward(request, dataStart, limit);
+        if (j == dataStart || request.get(j - 1) != '}') {
+            return -1;
+        }
+        j = skipWhitespaceBackward(request, dataStart, j - 1);
+        if (j == dataStart || request.get(j - 1) != '"') {
+            return -1;
+        }
+        // an escaped closing quote is caught below as an escape running past the end
+        dataEnd = j - 1;
+        if (input.length < WINDOW + LOOKAHEAD) {
+            input = new byte[WINDOW + LOOKAHEAD];
+        }
+        final byte[] in = input;
+        final boolean split = ParallelReverse.isParallel(dataEnd - dataStart);
+        long length = 0;
+        marks = 0;
+        for (int p = dataStart; p < dataEnd; ) {
+            if (split) {
+                mark(p, length);
+            }
+            final int count = readWindow(request, p, dataEnd);
+            final int stop = Math.min(count, WINDOW);
+            int k = 0;
+            while (k < stop) {
+                byte b = in[k];
+                if (isPlain(b)) {
+                    ++length;
+                    ++k;
+                    continue;
+                }
+                if (b == '"' || (b >= 0 && b < 0x20) || (b == '\\' && escapeLength(in, k, count) < 0)) {
+                    return -1;
+                }
+                int codePoint = decode(in, k, count);
+                if (codePoint < 0) {
+                    return -1;
+                }
+                length += escapedLength(codePoint);
+                k = next;
+            }
+            p += k;
+        }
+        long size = PREFIX.length + length + SUFFIX.length;
+        if (size > MAX_LARGE_RESPONSE) {
+            return -1;
+        }
+        if (split) {
+            mark(dataEnd, length);
+        }
+        dataLength = (int) length;
+        return (int) size;
+    }
+
+    /**
+     * Writes the response for the request accepted by the last {@link #parseLarge} call,
+     * each window is built backwards in the scratch array and copied to its place in the output.
+     */
+    public void writeLarge(ByteBuffer request, ByteBuffer out) {
+        if (marks > 2) {
+            writeParallel(request, out);
+            return;
+        }
+        ByteBuffer target = out.duplicate();
+        int outPos = out.position() + PREFIX.length + dataLength;
+        target.position(out.position());
+        target.put(PREFIX);
+        target.position(outPos);
+        target.put(SUFFIX);
+        writeRange(request, dataStart, dataEnd, target, outPos);
+    }
+
+    /**
+     * Writes the response with the windows between the marks reversed in parallel, the position of
+     * {@code out} is left where it was.
+     */
+    private void writeParallel(ByteBuffer request, ByteBuffer out) {
+        ByteBuffer target = out.duplicate();
+        int dataPos = out.position() + PREFIX.length;
+        target.position(out.position());
+        target.put(PREFIX);
+        target.position(dataPos + dataLength);
+        target.put(SUFFIX);
+        ParallelReverse.invoke(new ReverseWindows(request, out, dataPos + dataLength, markInput, markOutput, 0, marks - 1));
+    }
+
+    /**
+     * Reverses the data from {@code from} to {@code to}, both on code point boundaries, a window at a time:
+     * each window is built backwards in the scratch array and copied to its place in the output,
+     * the last byte right before {@code outEnd}.
+     */
+    private void writeRange(ByteBuffer request, int from, int to, ByteBuffer target, int outEnd) {
+        if (input.length < WINDOW + LOOKAHEAD) {
+            input = new byte[WINDOW + LOOKAHEAD];
+        }
+        if (output.length < (WINDOW + LOOKAHEAD) * 6) {
+            output = new byte[(WINDOW + LOOKAHEAD) * 6];
+        }
+        final byte[] in = input;
+        final int end = output.length;
+        int outPos = outEnd;
+        for (int p = from; p < to; ) {
+            final int count = readWindow(request, p, to);
+            final int stop = Math.min(count, WINDOW);
+            int pos = end;
+            int k = 0;
+            while (k < stop) {
+                byte b = in[k];
+                if (isPlain(b)) {
+                    output[--pos] = b;
+                    ++k;
+                    continue;
+                }
+                int codePoint = decode(in, k, count);
+                pos -= escapedLength(codePoint);
+                putEscaped(output, pos, codePoint);
+                k = next;
+            }
+            outPos -= end - pos;
+            target.position(outPos);
+            target.put(output, pos, end - pos);
+            p += k;
+        }
+    }
+
+    /**
+     * Copies the data string from {@code p} on into the input scratch, a window and its lookahead at most.
+     *
+     * @param end where the data, or the part of it that is reversed, ends
+     * @return number of bytes copied
+     */
+    private int readWindow(ByteBuffer request, int p, int end) {
+        final int count = Math.min(WINDOW + LOOKAHEAD, end - p);
+        ByteBuffer window = request.duplicate();
+        window.limit(p + count).position(p);
+        window.get(input, 0, count);
+        return count;
+    }
+
+    /**
+     * Reverses the windows between two marks, a window per leaf.
+     * Writes go to disjoint parts of the output through duplicates of it.
+     */
+    private static final class ReverseWindows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // scratch of the leaves, apart from the codec of the thread, which may be the one writing the response
+        private static final ThreadLocal<JsonCodec> scratch = new ThreadLocal<JsonCodec>() {
+            @Override
+            protected JsonCodec initialValue() {
+                return new JsonCodec();
+            }
+        };
+        private final ByteBuffer request;
+        private final ByteBuffer out;
+        private final int dataEnd;
+        private final int[] markInput;
+        private final int[] markOutput;
+        private final int from;
+        private final int to;
+
+        ReverseWindows(ByteBuffer request, ByteBuffer out, int dataEnd, int[] markInput, int[] markOutput, int from, int to) {
+            this.request = request;
+            this.out = out;
+            this.dataEnd = dataEnd;
+            this.markInput = markInput;
+            this.markOutput = markOutput;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ReverseWindows(request, out, dataEnd, markInput, markOutput, from, middle),
+                        new ReverseWindows(request, out, dataEnd, markInput, markOutput, middle, to));
+                return;
+            }
+            scratch.get().writeRange(request, markInput[from], markInput[to], out.duplicate(),
+                    dataEnd - markOutput[from]);
+        }
+    }
+
+    private static int skipWhitespace(ByteBuffer in, int i, int limit) {
+        while (i < limit && isWhitespace(in.get(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * @return index right after the last non whitespace byte before {@code end}, {@code start} if there is none
+     */
+    private static int skipWhitespaceBackward(ByteBuffer in, int start, int end) {
+        while (end > start && isWhitespace(in.get(end - 1))) {
+            --end;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static int skipWhitespace(byte[] in, int i, int limit) {
+        while (i < limit && isWhitespace(in[i])) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * @return index of the closing quote or -1 if the string is broken
+     */
+    private static int scanString(byte[] in, int i, int limit) {
+        while (i < limit) {
+            byte b = in[i];
+            if (b == '"') {
+                return i;
+            } else if (b == '\\') {
+                int length = escapeLength(in, i, limit);
+                if (length < 0) {
+                    return -1;
+                }
+                i += length;
+            } else if (b >= 0 && b < 0x20) {
+                return -1;
+            } else {
+                ++i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return length of the escape sequence at {@code i} or -1 if it is broken
+     */
+    private static int escapeLength(byte[] in, int i, int limit) {
+        if (i + 1 >= limit) {
+            return -1;
+        }
+        switch (in[i + 1]) {
+            case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                return 2;
+            case 'u':
+                return i + 5 < limit && hex4(in, i + 2) >= 0 ? 6 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean hasEscapes(byte[] in, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (in[i] == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDataKey(byte[] in, int start, int end) {
+        return end - start == 4 && in[start] == 'd' && in[start + 1] == 'a'
+                && in[start + 2] == 't' && in[start + 3] == 'a';
+    }
+
+    /**
+     * Skips a number or a literal, nested objects and arrays are not recognised.
+     */
+    private static int skipScalar(byte[] in, int i, int limit) {
+        byte b = in[i];
+        if (b == 't') {
+            return matches(in, i, limit, "true") ? i + 4 : -1;
+        } else if (b == 'f') {
+            return matches(in, i, limit, "false") ? i + 5 : -1;
+        } else if (b == 'n') {
+            return matches(in, i, limit, "null") ? i + 4 : -1;
+        }
+        if (b == '-') {
+            ++i;
+        }
+        int digits = i;
+        while (i < limit && isDigit(in[i])) {
+            ++i;
+        }
+        if (i == digits) {
+            return -1;
+        }
+        if (i < limit && in[i] == '.') {
+            digits = ++i;
+            while (i < limit && isDigit(in[i])) {
+                ++i;
+            }
+            if (i == digits) {
+                return -1;
+            }
+        }
+        if (i < limit && (in[i] == 'e' || in[i] == 'E')) {
+            ++i;
+            if (i < limit && (in[i] == '+' || in[i] == '-')) {
+                ++i;
+            }
+            digits = i;
+            while (i < limit && isDigit(in[i])) {
+                ++i;
+            }
+            if (i == digits) {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    private static boolean matches(byte[] in, int i, int limit, String literal) {
+        if (i + literal.length() > limit) {
+            return false;
+        }
+        for (int j = 0; j < literal.length(); ++j) {
+            if (in[i + j] != literal.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int hex4(byte[] in, int i) {
+        int value = 0;
+        for (int j = i; j < i + 4; ++j) {
+            int digit = Character.digit(in[j], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes one code point of an already scanned string, stores the index after it in {@link #next}.
+     *
+     * @return the code point or -1 for malformed UTF-8 and unpaired surrogates
+     */
+    private int decode(byte[] in, int i, int end) {
+        int b0 = in[i] & 0xFF;
+        if (b0 == '\\') {
+            next = i + 2;
+            switch (in[i + 1]) {
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int high = hex4(in, i + 2);
+                    next = i + 6;
+                    if (Character.isLowSurrogate((char) high)) {
+                        return -1;
+                    } else if (!Character.isHighSurrogate((char) high)) {
+                        return high;
+                    }
+                    if (i + 12 > end || in[i + 6] != '\\' || in[i + 7] != 'u') {
+                        return -1;
+                    }
+                    int low = hex4(in, i + 8);
+                    if (!Character.isLowSurrogate((char) low)) {
+                        return -1;
+                    }
+                    next = i + 12;
+                    return Character.toCodePoint((char) high, (char) low);
+                default:
+                    return in[i + 1];
+            }
+        }
+        if (b0 < 0x80) {
+            next = i + 1;
+            return b0;
+        }
+        int tail;
+        int codePoint;
+        int min;
+        if ((b0 & 0xE0) == 0xC0) {
+            tail = 1;
+            codePoint = b0 & 0x1F;
+            min = 0x80;
+        } else if ((b0 & 0xF0) == 0xE0) {
+            tail = 2;
+            codePoint = b0 & 0x0F;
+            min = 0x800;
+        } else if ((b0 & 0xF8) == 0xF0) {
+            tail = 3;
+            codePoint = b0 & 0x07;
+            min = 0x10000;
+        } else {
+            return -1;
+        }
+        if (i + tail >= end) {
+            return -1;
+        }
+        for (int j = i + 1; j <= i + tail; ++j) {
+            int b = in[j];
+            if ((b & 0xC0) != 0x80) {
+                return -1;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return -1;
+        }
+        next = i + tail + 1;
+        return codePoint;
+    }
+
+    /**
+     * @return true for printable ASCII that is copied as is
+     */
+    private static boolean isPlain(byte b) {
+        return b >= 0x20 && b < 0x7F && b != '"' && b != '\\' && b != '/';
+    }
+
+    private static boolean needsUnicodeEscape(int codePoint) {
+        return codePoint <= 0x1F || (codePoint >= 0x7F && codePoint <= 0x9F)
+                || (codePoint >= 0x2000 && codePoint <= 0x20FF);
+    }
+
+    private static int escapedLength(int codePoint) {
+        switch (codePoint) {
+            case '"': case '\\': case '/': case '\b': case '\f': case '\n': case '\r': case '\t':
+                return 2;
+        }
+        if (needsUnicodeEscape(codePoint)) {
+            return 6;
+        } else if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        } else if (codePoint < 0x10000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static void putEscaped(byte[] out, int pos, int codePoint) {
+        byte escape = 0;
+        switch (codePoint) {
+            case '"': escape = '"'; break;
+            case '\\': escape = '\\'; break;
+            case '/': escape = '/'; break;
+            case '\b': escape = 'b'; break;
+            case '\f': escape = 'f'; break;
+            case '\n': escape = 'n'; break;
+            case '\r': escape = 'r'; break;
+            case '\t': escape = 't'; break;
+        }
+        if (escape != 0) {
+            out[pos] = (byte) '\\';
+            out[pos + 1] = escape;
+        } else if (needsUnicodeEscape(codePoint)) {
+            out[pos] = (byte) '\\';
+            out[pos + 1] = (byte) 'u';
+            out[pos + 2] = HEX[(codePoint >> 12) & 0xF];
+            out[pos + 3] = HEX[(codePoint >> 8) & 0xF];
+            out[pos + 4] = HEX[(codePoint >> 4) & 0xF];
+            out[pos + 5] = HEX[codePoint & 0xF];
+        } else if (codePoint < 0x80) {
+            out[pos] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            out[pos] = (byte) (0xC0 | (codePoint >> 6));
+            out[pos + 1] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            out[pos] = (byte) (0xE0 | (codePoint >> 12));
+            out[pos + 1] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[pos + 2] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            out[pos] = (byte) (0xF0 | (codePoint >> 18));
+            out[pos + 1] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            out[pos + 2] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[pos + 3] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+    }
+}
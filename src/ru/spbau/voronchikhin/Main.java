@@ -1,11 +1,119 @@
 package ru.spbau.voronchikhin;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by s on 26.01.15.
  */
 public class Main {
+    private static final AsyncLog.Topic CLOSE_CAPTURE_FAILED = AsyncLog.topic("can not close the trace ");
+
     public static void main(String[] args) {
-        Server server = new Server(1234);
+        ServerConfig config = new ServerConfig();
+        String engine = "nio";
+        AdmissionControl admission = new AdmissionControl();
+        BalancerConfig balancing = new BalancerConfig();
+        int statsPort = 0;
+        String scheduling = "offload";
+        int inlineBytes = AdaptiveScheduling.DEFAULT_MAX_INLINE_BYTES;
+        long inlineMicros = AdaptiveScheduling.DEFAULT_INLINE_BUDGET_MICROS;
+        long cacheBytes = 0;
+        String capturePath = null;
+        int positional = 0;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length == 1) {
+                // port, reactors and engine may also be given in this order without names
+                if (positional == 0) {
+                    config.port = Integer.parseInt(arg);
+                } else if (positional == 1) {
+                    config.reactors = Integer.parseInt(arg);
+                } else {
+                    engine = arg;
+                }
+                ++positional;
+            } else if (option[0].equals("statsPort")) {
+                statsPort = Integer.parseInt(option[1]);
+            } else if (option[0].equals("scheduling")) {
+                scheduling = option[1];
+            } else if (option[0].equals("inlineBytes")) {
+                inlineBytes = Integer.parseInt(option[1]);
+            } else if (option[0].equals("inlineMicros")) {
+                inlineMicros = Long.parseLong(option[1]);
+            } else if (option[0].equals("cacheBytes")) {
+                cacheBytes = Long.parseLong(option[1]);
+            } else if (option[0].equals("capture")) {
+                capturePath = option[1];
+            } else if (option[0].equals("reverseThreshold")) {
+                ParallelReverse.setThreshold(Integer.parseInt(option[1]));
+            } else if (option[0].equals("reverseByteThreshold")) {
+                ParallelReverse.setByteThreshold(Integer.parseInt(option[1]));
+            } else if (!config.set(option[0], option[1]) && !balancing.set(option[0], option[1])) {
+                admission.set(option[0], option[1]);
+            }
+        }
+        if (engine.equals("balancer")) {
+            Balancer balancer = new Balancer(config, balancing, admission);
+            balancer.setStatsPort(statsPort);
+            balancer.run();
+            return;
+        }
+        Engine server;
+        if (engine.equals("blocking")) {
+            server = new BlockingServer(config, admission);
+        } else if (engine.equals("async")) {
+            server = new AsyncServer(config, admission);
+        } else if (engine.equals("nio")) {
+            Server nio = new Server(config, admission);
+            if (scheduling.equals("inline")) {
+                nio.setScheduling(SchedulingPolicy.INLINE);
+            } else if (scheduling.equals("adaptive")) {
+                nio.setScheduling(new AdaptiveScheduling(inlineBytes, TimeUnit.MICROSECONDS.toNanos(inlineMicros)));
+            } else {
+                nio.setScheduling(SchedulingPolicy.OFFLOAD);
+            }
+            server = nio;
+        } else {
+            System.out.println("Usage: Main [port [reactors [nio|blocking|async|balancer]]] [statsPort=port] [scheduling=offload|adaptive|inline]"
+                    + " [inlineBytes=n] [inlineMicros=n] [reverseThreshold=chars] [reverseByteThreshold=bytes] [cacheBytes=n] [capture=file]"
+                    + " [listeners=n] [workers=n] [tcpNoDelay=true] [sendBufferSize=n] [receiveBufferSize=n] [backlog=n]"
+                    + " [backends=host:port,...] [routing=least|hash] [connectionsPerBackend=n] [maxInFlightPerClient=n]"
+                    + " [probeIntervalMillis=n] [requestTimeoutMillis=n] [ejectMillis=n] [slowFactor=x] [minSlowMillis=n] [idleConnectionMillis=n]"
+                    + " [limit=value...]");
+            return;
+        }
+        server.setStatsPort(statsPort);
+        if (cacheBytes > 0) {
+            server.setResponseCache(new ResponseCache(cacheBytes));
+        }
+        if (capturePath != null) {
+            try {
+                server.setCapture(openCapture(capturePath));
+            } catch (IOException e) {
+                System.out.println("can not open the trace " + capturePath + ": " + e.getMessage());
+                return;
+            }
+        }
         server.run();
     }
+
+    /**
+     * Opens the trace the servers capture to, it is completed when the process exits.
+     */
+    private static TraceWriter openCapture(String path) throws IOException {
+        final TraceWriter capture = TraceWriter.open(Paths.get(path));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    capture.close();
+                } catch (IOException e) {
+                    CLOSE_CAPTURE_FAILED.log(e.getMessage());
+                }
+            }
+        }));
+        return capture;
+    }
 }
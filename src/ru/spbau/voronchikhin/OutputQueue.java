@@ -0,0 +1,151 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Responses waiting to be written to one connection.
+ * A flush hands up to {@link #MAX_GATHER} buffers to a single gathering write and stops after
+ * {@link #MAX_FLUSH_BYTES} bytes or as soon as the socket buffer is full, so one connection
+ * can not keep the reactor busy. Enqueue times are kept in a ring next to the buffers
+ * to measure how long a response waits to be written. A {@link FileRegion} response is written
+ * on its own with {@link java.nio.channels.FileChannel#transferTo}.
+ * The queue of a client connection reports every written response as a {@link RequestEvents.Flushed} event.
+ */
+class OutputQueue {
+    private static final int MAX_GATHER = 16;
+    private static final long MAX_FLUSH_BYTES = 256 * 1024;
+
+    private final ArrayDeque<Object> buffers = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long pendingBytes = 0;
+    private long[] enqueuedAt = new long[16];
+    private long[] sizes = new long[16];
+    private int head = 0;
+    private final long connection;
+    private long flushedCount = 0;
+
+    /**
+     * A queue that reports no events.
+     */
+    public OutputQueue() {
+        this(-1);
+    }
+
+    /**
+     * @param connection id of the client connection in the events, responses are numbered in queueing order
+     */
+    public OutputQueue(long connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @param buffer a {@link ByteBuffer} or a {@link FileRegion}
+     */
+    public void add(Object buffer, long now) {
+        int size = buffers.size();
+        if (size == enqueuedAt.length) {
+            long[] grown = new long[size << 1];
+            long[] grownSizes = new long[size << 1];
+            for (int i = 0; i < size; ++i) {
+                grown[i] = enqueuedAt[(head + i) & (size - 1)];
+                grownSizes[i] = sizes[(head + i) & (size - 1)];
+            }
+            enqueuedAt = grown;
+            sizes = grownSizes;
+            head = 0;
+        }
+        enqueuedAt[(head + size) & (enqueuedAt.length - 1)] = now;
+        sizes[(head + size) & (sizes.length - 1)] = FileRegion.remaining(buffer);
+        buffers.addLast(buffer);
+        pendingBytes += FileRegion.remaining(buffer);
+    }
+
+    public boolean isEmpty() {
+        return buffers.isEmpty();
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Writes as much as the channel takes now, fully written buffers go back to the pool.
+     *
+     * @return true if nothing is left to write
+     */
+    public boolean flush(GatheringByteChannel channel, BufferPool pool, ServerStats stats) throws IOException {
+        long flushed = 0;
+        while (!buffers.isEmpty() && flushed < MAX_FLUSH_BYTES) {
+            long written;
+            long batch;
+            if (buffers.peekFirst() instanceof FileRegion) {
+                FileRegion region = (FileRegion) buffers.peekFirst();
+                batch = Math.min(region.remaining(), MAX_FLUSH_BYTES - flushed);
+                written = region.writeTo(channel, MAX_FLUSH_BYTES - flushed);
+            } else {
+                int count = 0;
+                batch = 0;
+                for (Object buffer : buffers) {
+                    if (!(buffer instanceof ByteBuffer)) {
+                        break;
+                    }
+                    gather[count++] = (ByteBuffer) buffer;
+                    batch += ((ByteBuffer) buffer).remaining();
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                try {
+                    written = channel.write(gather, 0, count);
+                } finally {
+                    Arrays.fill(gather, 0, count, null);
+                }
+            }
+            flushed += written;
+            pendingBytes -= written;
+            stats.bytesWritten(written);
+            long now = System.nanoTime();
+            while (!buffers.isEmpty() && FileRegion.remaining(buffers.peekFirst()) == 0) {
+                FileRegion.release(buffers.pollFirst(), pool);
+                stats.write.record(now - enqueuedAt[head]);
+                flushed(now);
+                head = (head + 1) & (enqueuedAt.length - 1);
+            }
+            if (written < batch) {
+                break;
+            }
+        }
+        return buffers.isEmpty();
+    }
+
+    private void flushed(long now) {
+        long sequence = flushedCount++;
+        if (connection < 0) {
+            return;
+        }
+        RequestEvents.Flushed event = new RequestEvents.Flushed();
+        if (event.isEnabled()) {
+            event.connection = connection;
+            event.sequence = sequence;
+            event.size = sizes[head];
+            event.writeTime = now - enqueuedAt[head];
+            event.commit();
+        }
+    }
+
+    /**
+     * Drops everything that was not written.
+     */
+    public void release(BufferPool pool) {
+        Object buffer;
+        while ((buffer = buffers.pollFirst()) != null) {
+            FileRegion.release(buffer, pool);
+        }
+        pendingBytes = 0;
+        head = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package ru.spbau.voronchikhin;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reverses a string the way {@link StringBuilder#reverse} does, keeping surrogate pairs in order,
+ * splitting long strings into chunks that are reversed on a fork/join pool.
+ * Chunks are cut between the chars of a surrogate pair, so each of them
+ * is reversed as a plain char array and gets its pairs swapped back.
+ * The chunks run on a pool of their own rather than on the pool of the caller, so a long request
+ * does not take the threads that process the other requests of an engine.
+ * A chunk costs about twice the sequential reverse of the same chars, which works on the compact
+ * Latin-1 bytes of the string, so the parallel path is off on machines with less than four cores.
+ * {@link JsonCodec} reverses UTF-8 bytes in 64 KB windows instead, which cost about the same in
+ * parallel as in sequence, so its threshold is a byte count of its own: two windows, on two cores and more.
+ */
+final class ParallelReverse extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    public static final int DEFAULT_THRESHOLD = 1 << 18;
+    public static final int DEFAULT_BYTE_THRESHOLD = 1 << 17;
+    private static final int MIN_PROCESSORS = 4;
+    private static final int MIN_BYTE_PROCESSORS = 2;
+    private static final int CHUNK = 1 << 15;
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static volatile int threshold = Runtime.getRuntime().availableProcessors() >= MIN_PROCESSORS
+            ? DEFAULT_THRESHOLD : Integer.MAX_VALUE;
+    private static volatile int byteThreshold = Runtime.getRuntime().availableProcessors() >= MIN_BYTE_PROCESSORS
+            ? DEFAULT_BYTE_THRESHOLD : Integer.MAX_VALUE;
+
+    private final String in;
+    private final char[] out;
+    private final int from;
+    private final int to;
+
+    private ParallelReverse(String in, char[] out, int from, int to) {
+        this.in = in;
+        this.out = out;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param chars shortest string that is reversed in parallel
+     */
+    public static void setThreshold(int chars) {
+        threshold = chars;
+    }
+
+    /**
+     * @param bytes shortest UTF-8 data that {@link JsonCodec} reverses in parallel
+     */
+    public static void setByteThreshold(int bytes) {
+        byteThreshold = bytes;
+    }
+
+    static int getByteThreshold() {
+        return byteThreshold;
+    }
+
+    /**
+     * @return true if {@link JsonCodec} reverses data of this many UTF-8 bytes in parallel
+     */
+    static boolean isParallel(long bytes) {
+        return bytes >= byteThreshold;
+    }
+
+    public static String reverse(String s) {
+        if (s.length() < threshold) {
+            return new StringBuilder(s).reverse().toString();
+        }
+        return reverseParallel(s);
+    }
+
+    static String reverseParallel(String s) {
+        char[] out = new char[s.length()];
+        POOL.invoke(new ParallelReverse(s, out, 0, out.length));
+        return new String(out);
+    }
+
+    /**
+     * Runs a reverse split the way {@link JsonCodec} splits it on the same pool and waits for it.
+     */
+    static void invoke(ForkJoinTask<?> task) {
+        POOL.invoke(task);
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= CHUNK) {
+            reverse(in, out, from, to);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        if (Character.isHighSurrogate(in.charAt(middle - 1)) && Character.isLowSurrogate(in.charAt(middle))) {
+            ++middle;
+        }
+        invokeAll(new ParallelReverse(in, out, from, middle), new ParallelReverse(in, out, middle, to));
+    }
+
+    /**
+     * Copies the chunk out of the string here rather than up front, so that copy runs in parallel too.
+     */
+    private static void reverse(String in, char[] out, int from, int to) {
+        final int length = to - from;
+        final int end = out.length - from - 1;
+        char[] chunk = new char[length];
+        in.getChars(from, to, chunk, 0);
+        boolean surrogates = false;
+        for (int i = 0; i < length; ++i) {
+            char c = chunk[i];
+            surrogates |= Character.isSurrogate(c);
+            out[end - i] = c;
+        }
+        if (!surrogates) {
+            return;
+        }
+        for (int i = 0; i < length - 1; ++i) {
+            if (Character.isHighSurrogate(chunk[i]) && Character.isLowSurrogate(chunk[i + 1])) {
+                out[end - i - 1] = chunk[i];
+                out[end - i] = chunk[i + 1];
+                ++i;
+            }
+        }
+    }
+}
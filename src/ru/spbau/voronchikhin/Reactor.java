@@ -0,0 +1,543 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Selector loop serving a subset of the server connections.
+ * Every connection keeps its {@link Connection} state attached to its key and belongs to exactly
+ * one reactor, only the completion queue is shared with the worker threads.
+ * Requests of a connection may be processed in parallel, responses are still written in request order.
+ * Connection timeouts live on a timing wheel that is ticked between selects.
+ */
+class Reactor implements Runnable {
+    private static final AsyncLog.Topic EXECUTION_FAILED = AsyncLog.topic("failed execution ");
+    private static final AsyncLog.Topic CLOSE_FAILED = AsyncLog.topic("cant close =( ");
+    private static final AsyncLog.Topic REGISTRATION_FAILED = AsyncLog.topic("Failed on registration :");
+    private static final AsyncLog.Topic ACCEPT_FAILED = AsyncLog.topic("Failed on acception :");
+    private static final AsyncLog.Topic READ_FAILED = AsyncLog.topic("Failed on reading :");
+    private static final AsyncLog.Topic WRITE_FAILED = AsyncLog.topic("Write exception : ");
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SLOTS = 512;
+
+    private final Selector selector;
+    private final ExecutorService threadPool;
+    final SchedulingPolicy scheduling;
+    final BufferPool pool;
+    final AdmissionControl admission;
+    final ServerStats stats;
+    final ResponseCache cache;
+    private final TraceWriter capture;
+    private final ServerConfig config;
+    private final List<Connection> flushQueue = new ArrayList<>();
+    private final List<Connection> pausedQueue = new ArrayList<>();
+    private final CompletionQueue completions = new CompletionQueue();
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder wakeups = new LongAdder();
+    private final TimingWheel wheel = new TimingWheel(WHEEL_SLOTS, TICK_NANOS, System.nanoTime());
+
+    /**
+     * @param cache  responses of repeated frames, may be null
+     * @param config options applied to accepted sockets
+     * @param capture trace the incoming frames are copied to, may be null
+     */
+    public Reactor(ExecutorService threadPool, SchedulingPolicy scheduling, BufferPool pool, AdmissionControl admission,
+                   ServerStats stats, ResponseCache cache, ServerConfig config, TraceWriter capture) throws IOException {
+        this.threadPool = threadPool;
+        this.scheduling = scheduling;
+        this.pool = pool;
+        this.admission = admission;
+        this.stats = stats;
+        this.cache = cache;
+        this.config = config;
+        this.capture = capture;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Makes this reactor accept connections itself (single reactor mode).
+     */
+    public void listen(ServerSocketChannel serverSocketChannel) throws IOException {
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands an accepted channel over to this reactor, may be called from any thread.
+     */
+    public void register(SocketChannel socketChannel) {
+        connections.incrementAndGet();
+        pendingChannels.add(socketChannel);
+        selector.wakeup();
+    }
+
+    /**
+     * Passes a finished worker back to the reactor thread, may be called from any thread.
+     * The selector is woken up only if the queue was empty, otherwise a wakeup is already on its way.
+     */
+    public void complete(Worker worker) {
+        if (completions.push(worker)) {
+            wakeups.increment();
+            selector.wakeup();
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                registerPending();
+                processReadyWorkers();
+                selector.select(wheel.millisToNextTick(System.nanoTime()));
+                // timeouts are judged as of the select, data that came while the keys were handled is read first
+                final long selectedAt = System.nanoTime();
+                final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                }
+                wheel.advance(selectedAt);
+            }
+        } catch (IOException e) {
+            EXECUTION_FAILED.log(e.getMessage());
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                CLOSE_FAILED.log(e.getMessage());
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel socketChannel;
+        while ((socketChannel = pendingChannels.poll()) != null) {
+            try {
+                attach(socketChannel);
+            } catch (IOException e) {
+                REGISTRATION_FAILED.log(e.getMessage());
+                connections.decrementAndGet();
+                try {
+                    socketChannel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void attach(SocketChannel socketChannel) throws IOException {
+        socketChannel.configureBlocking(false);
+        config.configure(socketChannel);
+        SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+        Connection connection = new Connection(this, key);
+        key.attach(connection);
+        stats.connectionOpened();
+        final long now = System.nanoTime();
+        connection.lastReadAt = connection.lastWriteAt = now;
+        long timeout = shortestTimeout();
+        if (timeout > 0) {
+            wheel.schedule(connection, now + timeout);
+        }
+    }
+
+    /**
+     * Closes the connection if one of its timeouts has passed, otherwise schedules the next check.
+     */
+    void expire(Connection connection, long now) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        long deadline = Long.MAX_VALUE;
+        long writeTimeout = TimeUnit.MILLISECONDS.toNanos(admission.writeTimeoutMillis);
+        if (writeTimeout > 0 && !connection.output.isEmpty()) {
+            long writeDeadline = connection.lastWriteAt + writeTimeout;
+            if (writeDeadline <= now) {
+                admission.writeTimeout();
+                closeQuietly(connection);
+                return;
+            }
+            deadline = Math.min(deadline, writeDeadline);
+        }
+        boolean unfinished = connection.decoder.hasUnfinished();
+        long readTimeout = TimeUnit.MILLISECONDS.toNanos(admission.readTimeoutMillis);
+        if (readTimeout > 0 && unfinished && !connection.readPaused) {
+            long readDeadline = connection.frameStartedAt + readTimeout;
+            if (readDeadline <= now) {
+                admission.readTimeout();
+                closeQuietly(connection);
+                return;
+            }
+            deadline = Math.min(deadline, readDeadline);
+        }
+        long idleTimeout = TimeUnit.MILLISECONDS.toNanos(admission.idleTimeoutMillis);
+        if (idleTimeout > 0 && !unfinished && connection.inFlight == 0 && connection.output.isEmpty()) {
+            long idleDeadline = Math.max(connection.lastReadAt, connection.lastWriteAt) + idleTimeout;
+            if (idleDeadline <= now) {
+                admission.idleTimeout();
+                closeQuietly(connection);
+                return;
+            }
+            deadline = Math.min(deadline, idleDeadline);
+        }
+        if (deadline == Long.MAX_VALUE) {
+            // busy or paused, look again later
+            deadline = now + shortestTimeout();
+        }
+        wheel.schedule(connection, deadline);
+    }
+
+    private long shortestTimeout() {
+        long shortest = Long.MAX_VALUE;
+        for (long timeout : new long[]{admission.idleTimeoutMillis, admission.readTimeoutMillis, admission.writeTimeoutMillis}) {
+            if (timeout > 0) {
+                shortest = Math.min(shortest, timeout);
+            }
+        }
+        return shortest == Long.MAX_VALUE ? 0 : TimeUnit.MILLISECONDS.toNanos(shortest);
+    }
+
+    /**
+     * Queues finished responses and tries to write them right away,
+     * OP_WRITE is only requested for connections whose socket buffer is full.
+     */
+    private void processReadyWorkers() throws IOException {
+        Worker worker = completions.drain();
+        if (worker == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        while (worker != null) {
+            Worker next = worker.next;
+            worker.next = null;
+            stats.handoff.record(now - worker.completedAt);
+            final Connection connection = worker.connection;
+            final SelectionKey key = connection.key;
+            admission.release();
+            --connection.inFlight;
+            if (!key.isValid()) {
+                FileRegion.release(worker.getOutput(), pool);
+            } else {
+                boolean idle = connection.output.isEmpty() && (key.interestOps() & SelectionKey.OP_WRITE) == 0;
+                connection.pending.complete(worker.sequence, worker.getOutput());
+                if (deliver(connection, now) && idle) {
+                    flushQueue.add(connection);
+                }
+                if (connection.readPaused) {
+                    pausedQueue.add(connection);
+                }
+            }
+            worker = next;
+        }
+        for (int i = 0; i < flushQueue.size(); ++i) {
+            Connection connection = flushQueue.get(i);
+            if (connection.key.isValid()) {
+                write(connection);
+            }
+        }
+        flushQueue.clear();
+        for (int i = 0; i < pausedQueue.size(); ++i) {
+            Connection connection = pausedQueue.get(i);
+            if (connection.key.isValid()) {
+                updateInterest(connection);
+            }
+        }
+        pausedQueue.clear();
+    }
+
+    private void accept(final SelectionKey key) throws IOException {
+        ServerSocketChannel clientChannel = (ServerSocketChannel) key.channel();
+        SocketChannel socketChannel = null;
+        try {
+            socketChannel = clientChannel.accept();
+            if (socketChannel == null) {
+                return;
+            }
+            attach(socketChannel);
+            connections.incrementAndGet();
+        } catch (IOException e) {
+            ACCEPT_FAILED.log(e.getMessage());
+            key.cancel();
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+        }
+    }
+
+    private void close(Connection connection) throws IOException {
+        wheel.cancel(connection);
+        connection.key.cancel();
+        connection.key.channel().close();
+        connection.release();
+        connections.decrementAndGet();
+        stats.connectionClosed();
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            close(connection);
+        } catch (IOException e) {
+            CLOSE_FAILED.log(e.getMessage());
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) connection.key.channel();
+        FrameDecoder decoder = connection.decoder;
+        final long now = System.nanoTime();
+        connection.lastReadAt = now;
+        if (!decoder.hasUnfinished()) {
+            connection.frameStartedAt = now;
+        }
+        int read = 0;
+        try {
+            while ((read = socketChannel.read(decoder.readBuffer())) > 0) {
+                stats.bytesRead(read);
+                if (!dispatchFrames(connection, now)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            READ_FAILED.log(e.getMessage());
+            close(connection);
+            return;
+        }
+        if (read == -1) {
+            close(connection);
+            return;
+        } else if (!decoder.hasUnfinished()) {
+            decoder.release();
+        }
+        if (!connection.output.isEmpty()) {
+            write(connection);
+        } else {
+            updateInterest(connection);
+        }
+    }
+
+    /**
+     * Processes decoded frames inline or sends them to the thread pool, as the scheduling policy says,
+     * while the connection is under its in-flight limit.
+     *
+     * @return false if frames may be left in the decoder and reading has to pause
+     */
+    private boolean dispatchFrames(Connection connection, long now) {
+        while (connection.inFlight < admission.maxInFlightPerConnection) {
+            ByteBuffer frame = connection.decoder.nextFrame();
+            if (frame == null) {
+                return true;
+            }
+            stats.request();
+            final long readTime = now - connection.frameStartedAt;
+            stats.read.record(readTime);
+            connection.frameStartedAt = now;
+            if (capture != null && frame != FrameDecoder.TOO_LARGE && frame != FrameDecoder.SPILLED) {
+                capture.capture(connection.id, connection.decoder.isBinary(), frame);
+            }
+            SpilledFrame spilled = frame == FrameDecoder.SPILLED ? connection.decoder.takeSpilled() : null;
+            frameComplete(connection, frame, spilled, readTime);
+            if (frame == FrameDecoder.TOO_LARGE) {
+                admission.oversizedFrame();
+                reject(connection, now);
+            } else if (spilled != null) {
+                admission.spilledFrame();
+                if (!admission.tryAcquire()) {
+                    spilled.close();
+                    reject(connection, now);
+                } else {
+                    dispatch(connection, new Worker(connection, spilled), now);
+                }
+            } else if (scheduling.runInline(frame.remaining())) {
+                runInline(connection, frame);
+            } else if (!admission.tryAcquire()) {
+                pool.release(frame);
+                reject(connection, now);
+            } else {
+                dispatch(connection, new Worker(connection, frame), now);
+            }
+        }
+        return false;
+    }
+
+    private void dispatch(Connection connection, Worker worker, long now) {
+        ++connection.inFlight;
+        worker.sequence = connection.pending.issue();
+        worker.dispatchedAt = now;
+        stats.offloaded();
+        dispatched(connection, worker.sequence, worker.size(), false);
+        threadPool.execute(worker);
+    }
+
+    private static void frameComplete(Connection connection, ByteBuffer frame, SpilledFrame spilled, long readTime) {
+        RequestEvents.FrameComplete event = new RequestEvents.FrameComplete();
+        if (event.isEnabled()) {
+            event.connection = connection.id;
+            event.sequence = connection.pending.nextSequence();
+            // the size of a frame over the limit is not known, it is skipped unread
+            event.size = spilled != null ? spilled.size() : frame == FrameDecoder.TOO_LARGE ? -1 : frame.remaining();
+            event.binary = connection.decoder.isBinary();
+            event.readTime = readTime;
+            event.commit();
+        }
+    }
+
+    private static void dispatched(Connection connection, long sequence, long size, boolean inline) {
+        RequestEvents.Dispatched event = new RequestEvents.Dispatched();
+        if (event.isEnabled()) {
+            event.connection = connection.id;
+            event.sequence = sequence;
+            event.size = size;
+            event.inline = inline;
+            event.commit();
+        }
+    }
+
+    /**
+     * Processes a request on the reactor thread, it never waits in the pool, so it takes no admission slot.
+     */
+    private void runInline(Connection connection, ByteBuffer frame) {
+        final int frameSize = frame.remaining();
+        final long sequence = connection.pending.issue();
+        dispatched(connection, sequence, frameSize, true);
+        RequestEvents.Process event = new RequestEvents.Process();
+        event.begin();
+        final long startedAt = System.nanoTime();
+        ByteBuffer response = Worker.respond(frame, connection.decoder.isBinary(), pool, stats, cache);
+        final long completedAt = System.nanoTime();
+        stats.process.record(completedAt - startedAt);
+        stats.inlined();
+        scheduling.processed(frameSize, completedAt - startedAt);
+        if (event.shouldCommit()) {
+            event.connection = connection.id;
+            event.sequence = sequence;
+            event.size = frameSize;
+            event.commit();
+        }
+        connection.pending.complete(sequence, response);
+        deliver(connection, completedAt);
+    }
+
+    private void reject(Connection connection, long now) {
+        stats.failure();
+        ByteBuffer failure = connection.decoder.isBinary() ? BinaryCodec.failure() : JsonCodec.failure();
+        connection.pending.complete(connection.pending.issue(), failure);
+        deliver(connection, now);
+    }
+
+    /**
+     * Moves the responses that are next in request order to the output queue.
+     *
+     * @return true if anything was moved
+     */
+    private boolean deliver(Connection connection, long now) {
+        if (connection.output.isEmpty()) {
+            // the write timeout counts from the moment there is something to write
+            connection.lastWriteAt = now;
+        }
+        boolean delivered = false;
+        Object response;
+        while ((response = connection.pending.poll()) != null) {
+            queued(connection, response);
+            connection.output.add(response, now);
+            delivered = true;
+        }
+        return delivered;
+    }
+
+    private static void queued(Connection connection, Object response) {
+        RequestEvents.Queued event = new RequestEvents.Queued();
+        if (event.isEnabled()) {
+            event.connection = connection.id;
+            event.sequence = connection.pending.headSequence() - 1;
+            event.size = FileRegion.remaining(response);
+            event.pendingOutput = connection.output.getPendingBytes();
+            event.commit();
+        }
+    }
+
+    /**
+     * Stops reading a connection with too many requests in flight or too much unsent output
+     * and resumes it, starting with the frames it has already read, once it is below the limits.
+     */
+    private void updateInterest(Connection connection) {
+        boolean tooManyInFlight = connection.inFlight >= admission.maxInFlightPerConnection;
+        boolean tooMuchOutput = connection.output.getPendingBytes() > admission.maxPendingOutputBytes;
+        boolean pause = tooManyInFlight || tooMuchOutput;
+        if (!pause && connection.readPaused) {
+            pause = !dispatchFrames(connection, System.nanoTime());
+            if (!connection.output.isEmpty()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        if (pause == connection.readPaused) {
+            return;
+        }
+        connection.readPaused = pause;
+        SelectionKey key = connection.key;
+        if (pause) {
+            if (tooMuchOutput) {
+                admission.outputPause();
+            } else {
+                admission.inFlightPause();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        SelectionKey selectionKey = connection.key;
+        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+        long pendingBytes = connection.output.getPendingBytes();
+        try {
+            if (connection.output.isEmpty() || connection.output.flush(socketChannel, pool, stats)) {
+                selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            WRITE_FAILED.log(e.getMessage());
+            close(connection);
+            return;
+        }
+        if (connection.output.getPendingBytes() < pendingBytes) {
+            connection.lastWriteAt = System.nanoTime();
+        }
+        updateInterest(connection);
+    }
+}
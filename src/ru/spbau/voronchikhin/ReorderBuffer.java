@@ -0,0 +1,76 @@
+package ru.spbau.voronchikhin;
+
+/**
+ * Puts the responses of one pipelining connection back into request order.
+ * Every request takes the next sequence number when it is dispatched, its response is parked
+ * in the slot of that number and leaves only when all earlier responses have left.
+ * The slots form a ring that grows with the number of unanswered requests,
+ * a response is a {@link java.nio.ByteBuffer} or a {@link FileRegion}.
+ */
+class ReorderBuffer {
+    private Object[] slots = new Object[16];
+    private long next = 0;
+    private long head = 0;
+
+    /**
+     * @return sequence number for the next request
+     */
+    public long issue() {
+        int size = (int) (next - head);
+        if (size == slots.length) {
+            Object[] grown = new Object[size << 1];
+            for (long sequence = head; sequence < next; ++sequence) {
+                grown[(int) sequence & (grown.length - 1)] = slots[(int) sequence & (size - 1)];
+            }
+            slots = grown;
+        }
+        return next++;
+    }
+
+    /**
+     * @return sequence number the next request will take
+     */
+    public long nextSequence() {
+        return next;
+    }
+
+    /**
+     * @return sequence number of the response {@link #poll} returns next
+     */
+    public long headSequence() {
+        return head;
+    }
+
+    public void complete(long sequence, Object response) {
+        slots[(int) sequence & (slots.length - 1)] = response;
+    }
+
+    /**
+     * @return the response of the oldest request if it is ready, null otherwise
+     */
+    public Object poll() {
+        if (head == next) {
+            return null;
+        }
+        int index = (int) head & (slots.length - 1);
+        Object response = slots[index];
+        if (response != null) {
+            slots[index] = null;
+            ++head;
+        }
+        return response;
+    }
+
+    /**
+     * Drops the responses that are still waiting for earlier ones.
+     */
+    public void release(BufferPool pool) {
+        for (int i = 0; i < slots.length; ++i) {
+            if (slots[i] != null) {
+                FileRegion.release(slots[i], pool);
+                slots[i] = null;
+            }
+        }
+        head = next;
+    }
+}
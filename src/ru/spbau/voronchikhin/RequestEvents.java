@@ -0,0 +1,119 @@
+package ru.spbau.voronchikhin;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for the phases of a request on the reactor engine, one event per phase and request.
+ * The events of a request share the connection id and its sequence number on the connection, the thread
+ * of a phase is the event thread. They are turned on and off like any other event through the recording
+ * settings, e.g. {@code ru.spbau.voronchikhin.RequestProcess#enabled=false}. Callers check
+ * {@link Event#isEnabled} before filling an event in, so with no recording a phase costs a branch
+ * once compiled. The gap between the end of {@link Process} and {@link Queued} is the wait for the
+ * reactor and for earlier responses of the connection.
+ */
+final class RequestEvents {
+    private RequestEvents() {
+    }
+
+    @Name("ru.spbau.voronchikhin.FrameComplete")
+    @Label("Frame Complete")
+    @Description("A request frame has been read completely")
+    @Category({"Server", "Request"})
+    @StackTrace(false)
+    static final class FrameComplete extends Event {
+        @Label("Connection")
+        long connection;
+        @Label("Sequence")
+        long sequence;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Binary")
+        boolean binary;
+        @Label("Read Time")
+        @Description("Time from the first byte of the frame to the read that completed it")
+        @Timespan
+        long readTime;
+    }
+
+    @Name("ru.spbau.voronchikhin.RequestDispatched")
+    @Label("Request Dispatched")
+    @Description("A request was handed to the thread pool or kept on the reactor thread")
+    @Category({"Server", "Request"})
+    @StackTrace(false)
+    static final class Dispatched extends Event {
+        @Label("Connection")
+        long connection;
+        @Label("Sequence")
+        long sequence;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Inline")
+        boolean inline;
+    }
+
+    @Name("ru.spbau.voronchikhin.RequestProcess")
+    @Label("Request Process")
+    @Description("Computing the response, the event lasts from processing start to processing end")
+    @Category({"Server", "Request"})
+    @StackTrace(false)
+    static final class Process extends Event {
+        @Label("Connection")
+        long connection;
+        @Label("Sequence")
+        long sequence;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Queue Time")
+        @Description("Time the request waited in the thread pool queue")
+        @Timespan
+        long queueTime;
+    }
+
+    @Name("ru.spbau.voronchikhin.ResponseQueued")
+    @Label("Response Queued")
+    @Description("A response was put into the output queue of its connection")
+    @Category({"Server", "Request"})
+    @StackTrace(false)
+    static final class Queued extends Event {
+        @Label("Connection")
+        long connection;
+        @Label("Sequence")
+        long sequence;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Pending Output")
+        @Description("Unsent bytes of the connection ahead of the response")
+        @DataAmount
+        long pendingOutput;
+    }
+
+    @Name("ru.spbau.voronchikhin.ResponseFlushed")
+    @Label("Response Flushed")
+    @Description("The last byte of a response was written to the socket")
+    @Category({"Server", "Request"})
+    @StackTrace(false)
+    static final class Flushed extends Event {
+        @Label("Connection")
+        long connection;
+        @Label("Sequence")
+        long sequence;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Write Time")
+        @Description("Time from queueing to the last byte written")
+        @Timespan
+        long writeTime;
+    }
+}
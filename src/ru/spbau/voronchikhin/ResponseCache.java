@@ -0,0 +1,167 @@
+package ru.spbau.voronchikhin;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of responses keyed on the raw request frame, shared by all threads.
+ * A lookup hashes the frame bytes once and compares them with {@link ByteBuffer#equals},
+ * so it needs neither a String nor a copy. Responses are kept in read-only direct buffers
+ * handed out as duplicates, the writer sends them as they are and {@link BufferPool#release} ignores them.
+ * Entries are spread over segments by hash, each segment is an LRU map behind its own lock
+ * with an equal share of the byte budget. Entries bigger than a quarter of a segment are not cached.
+ */
+final class ResponseCache {
+    private static final int SEGMENTS = 16;
+    // rough size of the map entry, the key and the buffer objects
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long maxEntryBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(long maxBytes) {
+        long segmentBytes = maxBytes / SEGMENTS;
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = new Segment(segmentBytes);
+        }
+        maxEntryBytes = segmentBytes / 4;
+    }
+
+    /**
+     * @return duplicate of the cached response for this frame or null
+     */
+    public ByteBuffer get(ByteBuffer frame, boolean binary) {
+        Key key = new Key(frame, binary);
+        ByteBuffer response = segment(key).get(key);
+        if (response == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return response.duplicate();
+    }
+
+    /**
+     * Caches a copy of the response, neither the frame nor the response change hands.
+     */
+    public void put(ByteBuffer frame, boolean binary, ByteBuffer response) {
+        long size = frame.remaining() + response.remaining() + ENTRY_OVERHEAD;
+        if (size > maxEntryBytes || response.isReadOnly()) {
+            return;
+        }
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        ByteBuffer copy = ByteBuffer.allocateDirect(response.remaining());
+        copy.put(response.duplicate());
+        copy.flip();
+        Key key = new Key(ByteBuffer.wrap(bytes), binary);
+        evictions.add(segment(key).put(key, copy.asReadOnlyBuffer(), size));
+    }
+
+    private Segment segment(Key key) {
+        return segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Frame bytes and protocol with the hash computed once, a lookup key wraps the frame itself.
+     */
+    private static final class Key {
+        final ByteBuffer bytes;
+        final boolean binary;
+        final int hash;
+
+        Key(ByteBuffer bytes, boolean binary) {
+            this.bytes = bytes;
+            this.binary = binary;
+            this.hash = binary ? ~bytes.hashCode() : bytes.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return key.hash == hash && key.binary == binary && key.bytes.equals(bytes);
+        }
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxBytes;
+        private long bytes = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized ByteBuffer get(Key key) {
+            return entries.get(key);
+        }
+
+        /**
+         * @return number of evicted entries
+         */
+        synchronized int put(Key key, ByteBuffer response, long size) {
+            ByteBuffer previous = entries.put(key, response);
+            if (previous != null) {
+                bytes -= size(key, previous);
+            }
+            bytes += size;
+            int evicted = 0;
+            Iterator<Map.Entry<Key, ByteBuffer>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<Key, ByteBuffer> entry = eldest.next();
+                bytes -= size(entry.getKey(), entry.getValue());
+                eldest.remove();
+                ++evicted;
+            }
+            return evicted;
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        private static long size(Key key, ByteBuffer response) {
+            return key.bytes.capacity() + response.capacity() + ENTRY_OVERHEAD;
+        }
+    }
+}
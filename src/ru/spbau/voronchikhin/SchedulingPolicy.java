@@ -0,0 +1,41 @@
+package ru.spbau.voronchikhin;
+
+/**
+ * Decides whether the reactor processes a request itself or hands it to the thread pool.
+ * Inline requests skip the pool queue and the trip back through the completion queue,
+ * but hold up every other connection of the reactor while they run.
+ * Implementations are called from reactor and pool threads at the same time.
+ */
+public interface SchedulingPolicy {
+    SchedulingPolicy INLINE = new SchedulingPolicy() {
+        @Override
+        public boolean runInline(int frameSize) {
+            return true;
+        }
+
+        @Override
+        public void processed(int frameSize, long nanos) {
+        }
+    };
+
+    SchedulingPolicy OFFLOAD = new SchedulingPolicy() {
+        @Override
+        public boolean runInline(int frameSize) {
+            return false;
+        }
+
+        @Override
+        public void processed(int frameSize, long nanos) {
+        }
+    };
+
+    /**
+     * @return true to process a request frame of {@code frameSize} bytes on the reactor thread
+     */
+    boolean runInline(int frameSize);
+
+    /**
+     * Reports how long a request took to process, wherever it ran.
+     */
+    void processed(int frameSize, long nanos);
+}
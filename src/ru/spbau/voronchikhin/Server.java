@@ -5,233 +5,234 @@ package ru.spbau.voronchikhin;
  */
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.*;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ForkJoinPool;
 
-public class Server {
+/**
+ * NIO server. With {@code reactorCount == 0} a single selector thread accepts, reads and writes;
+ * otherwise the calling thread only accepts and hands channels to the least loaded of
+ * {@code reactorCount} sub-reactor threads. With several listeners every listening socket gets
+ * a reactor that accepts on its own and a worker pool of its own, see {@link ServerConfig}.
+ */
+public class Server implements Engine {
+    private static final AsyncLog.Topic EXECUTION_FAILED = AsyncLog.topic("failed execution ");
+    private static final AsyncLog.Topic CLOSE_FAILED = AsyncLog.topic("cant close =( ");
+    private static final AsyncLog.Topic ACCEPT_FAILED = AsyncLog.topic("Failed on acception :");
 
-    private Selector selector;
     private ServerSocketChannel serverSocketChannel;
+    private final ServerConfig config;
     private final int serverPort;
-    private ExecutorService threadPool = Executors.newFixedThreadPool(8);
-    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
-    private final Map<SelectionKey, List<ByteBuffer>> outputData = new HashMap<>();
-    private final Map<SelectionKey, Worker> unfinishedReads = new HashMap<>();
-    private BlockingQueue<Worker> readyWokers = new LinkedBlockingDeque<>();
+    private final int reactorCount;
+    private ExecutorService threadPool;
+    private SchedulingPolicy scheduling = SchedulingPolicy.OFFLOAD;
+    private ResponseCache cache;
+    private TraceWriter capture;
+    private final BufferPool bufferPool = new BufferPool();
+    private final AdmissionControl admission;
+    private final ServerStats stats = new ServerStats();
+    private int statsPort = 0;
+    private Reactor[] reactors;
+    private int nextReactor = 0;
 
     public Server(int port) {
-        this.serverPort = port;
+        this(port, 0);
+    }
+
+    public Server(int port, int reactorCount) {
+        this(port, reactorCount, new AdmissionControl());
+    }
+
+    public Server(int port, int reactorCount, AdmissionControl admission) {
+        this(config(port, reactorCount), admission);
+    }
+
+    public Server(ServerConfig config, AdmissionControl admission) {
+        this.config = config;
+        this.serverPort = config.port;
+        this.reactorCount = config.reactors;
+        this.admission = admission;
+        stats.watch(bufferPool, admission);
+    }
+
+    private static ServerConfig config(int port, int reactorCount) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.reactors = reactorCount;
+        return config;
+    }
+
+    /**
+     * Serves the plain text stats report on {@code port} as well, 0 turns it off.
+     */
+    @Override
+    public void setStatsPort(int port) {
+        this.statsPort = port;
+    }
+
+    /**
+     * Sets the policy that picks requests to process on the reactor threads, has to be called before {@link #run}.
+     */
+    public void setScheduling(SchedulingPolicy scheduling) {
+        this.scheduling = scheduling;
+    }
+
+    /**
+     * Serves repeated requests from the cache, has to be called before {@link #run}.
+     */
+    @Override
+    public void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+        stats.watch(cache);
+    }
+
+    /**
+     * Copies every incoming frame to the trace, has to be called before {@link #run}.
+     * Spilled frames are not captured.
+     */
+    @Override
+    public void setCapture(TraceWriter capture) {
+        this.capture = capture;
+        stats.watch(capture);
     }
 
+    @Override
     public void run() {
-        System.out.println("server started on port " + serverPort);
+        if (config.listeners > 1) {
+            runListeners();
+            return;
+        }
+        System.out.println("server started on port " + serverPort + ", reactors " + reactorCount);
         try {
-            selector = Selector.open();
-            serverSocketChannel = ServerSocketChannel.open();
-            serverSocketChannel.bind(new InetSocketAddress(serverPort));
-            serverSocketChannel.configureBlocking(false);
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            while (true) {
-                processReadyWorkers();
-                if (selector.select() == 0) {
-                    continue;
-                }
-                final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    if (!key.isValid()) {
-                        return;
-                    } else if (key.isAcceptable()) {
-                        accept(key);
-                    } else if (key.isReadable()) {
-                        read(key);
-                    } else if (key.isWritable()) {
-                        write(key);
-                    }
-                    keyIterator.remove();
-                }
+            serverSocketChannel = config.openListener();
+            stats.register("nio-" + serverPort);
+            if (statsPort > 0) {
+                new StatsServer(statsPort, stats).start();
+            }
+            threadPool = newWorkerPool(config.workers);
+            if (reactorCount <= 0) {
+                Reactor reactor = new Reactor(threadPool, scheduling, bufferPool, admission, stats, cache, config, capture);
+                reactors = new Reactor[]{reactor};
+                reactor.listen(serverSocketChannel);
+                reactor.run();
+            } else {
+                startReactors();
+                acceptLoop();
             }
         } catch (IOException e) {
-            System.err.println("failed execution " + e.getMessage());
-        } catch (InterruptedException e) {
-            System.err.println("was interrupted");
+            EXECUTION_FAILED.log(e.getMessage());
         } finally {
             try {
                 if (serverSocketChannel != null) {
                     serverSocketChannel.close();
                 }
-                if (selector != null) {
-                    selector.close();
-                }
             } catch (IOException e) {
-                System.err.println("cant close =( " + e.getMessage());
+                CLOSE_FAILED.log(e.getMessage());
             }
         }
     }
 
-    private void processReadyWorkers() throws InterruptedException {
-        while (!readyWokers.isEmpty()) {
-            Worker worker = readyWokers.take();
-            if (!worker.key.isValid()) {
-                continue;
+    /**
+     * Opens every listener up front so a port that can not be shared fails before anything runs,
+     * the last reactor runs on the calling thread.
+     */
+    private void runListeners() {
+        final int listeners = config.listeners;
+        System.out.println("server started on port " + serverPort + ", listeners " + listeners);
+        ServerSocketChannel[] channels = new ServerSocketChannel[listeners];
+        try {
+            for (int i = 0; i < listeners; ++i) {
+                channels[i] = config.openListener();
             }
-            final SelectionKey key = worker.key;
-            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-            if (outputData.containsKey(key)) {
-                outputData.get(key).add(worker.getOutput());
-            } else {
-                List<ByteBuffer> outBuffers = new LinkedList<>();
-                outBuffers.add(worker.getOutput());
-                outputData.put(key, outBuffers);
+            stats.register("nio-" + serverPort);
+            if (statsPort > 0) {
+                new StatsServer(statsPort, stats).start();
             }
-        }
-        selector.wakeup();
-    }
-
-    private void accept(final SelectionKey key) throws IOException {
-        ServerSocketChannel clientChannel = (ServerSocketChannel) key.channel();
-        SocketChannel socketChannel = null;
-        try {
-            socketChannel = clientChannel.accept();
-            socketChannel.configureBlocking(false);
-            socketChannel.register(selector, SelectionKey.OP_READ);
-        } catch (IOException e) {
-            System.err.println("Failed on acception :" + e.getMessage());
-            key.cancel();
-            if (socketChannel != null) {
-                socketChannel.close();
+            final int workers = Math.max(1, (config.workers + listeners - 1) / listeners);
+            reactors = new Reactor[listeners];
+            for (int i = 0; i < listeners; ++i) {
+                reactors[i] = new Reactor(newWorkerPool(workers), scheduling, bufferPool, admission, stats, cache, config, capture);
+                reactors[i].listen(channels[i]);
             }
-        }
-    }
-
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        int read = 0;
-        boolean hasData = false;
-        boolean finished = !unfinishedReads.containsKey(key);
-        Worker worker = finished ? new Worker(key) : unfinishedReads.get(key);
-        try {
-            buffer.clear();
-            while ((read = socketChannel.read(buffer)) > 0) {
-                buffer.flip();
-                worker.addData(buffer, read);
-                hasData = true;
-                buffer.clear();
+            for (int i = 0; i < listeners - 1; ++i) {
+                Thread thread = new Thread(reactors[i], "reactor-" + i);
+                thread.setDaemon(true);
+                thread.start();
             }
+            reactors[listeners - 1].run();
         } catch (IOException e) {
-            System.err.println("Failed on reading :" + e.getMessage());
-            key.cancel();
-            socketChannel.close();
-        }
-        if (read == -1) {
-            key.cancel();
-            socketChannel.close();
-            return;
-        }
-        if (!hasData) {
-            return;
-        }
-        if (worker.read()) {
-            threadPool.execute(worker);
-            unfinishedReads.remove(key);
-        } else {
-            unfinishedReads.put(key, worker);
-        }
-    }
-
-    private void write(SelectionKey selectionKey) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        if (!outputData.containsKey(selectionKey)) {//no data to write
-            return;
-        }
-        try {
-            List<ByteBuffer> sendBuffers = outputData.get(selectionKey);
-            Iterator<ByteBuffer> it = sendBuffers.iterator();
-            while (it.hasNext()) {
-                ByteBuffer byteBuffer = it.next();
-                while (socketChannel.write(byteBuffer) > 0) {
+            EXECUTION_FAILED.log(e.getMessage());
+        } finally {
+            for (ServerSocketChannel channel : channels) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    CLOSE_FAILED.log(e.getMessage());
                 }
-                if (byteBuffer.remaining() == 0) {
-                    it.remove();
-                } else
-                    return;
-            }
-            if (sendBuffers.isEmpty()) {
-                selectionKey.interestOps(SelectionKey.OP_READ);
-                outputData.remove(selectionKey);
             }
-        } catch (IOException e) {
-            System.err.println("Write exception : " + e.getMessage());
-            selectionKey.cancel();
-            socketChannel.close();
         }
     }
 
-    private class Worker implements Runnable {
-        private byte[] buffer = new byte[8192];
-        private int bufSize = 0;
-        public final SelectionKey key;
-        private ByteBuffer output;
-
-        public Worker(SelectionKey key) {
-            this.key = key;
-        }
-
-        public void addData(ByteBuffer newData, int len) {
-            int newSize = bufSize + len;
-            if (newSize > buffer.length) {
-                realloc(newSize);
-            }
-            newData.get(buffer, bufSize, len);
-            bufSize = newSize;
-        }
+    private static ExecutorService newWorkerPool(int workers) {
+        return new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
 
-        private void realloc(int newSize) {
-            byte[] newBuffer = new byte[Math.max(buffer.length << 1, newSize)];
-            System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
-            buffer = newBuffer;
-        }
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
 
-        private byte[] getData() {
-            return Arrays.copyOfRange(buffer, 0, bufSize);
-        }
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
 
-        public boolean read() {
-            String data = stringData();
-            return data.substring(data.length() - 4).equals("endl");
-        }
+    @Override
+    public ServerStats getStats() {
+        return stats;
+    }
 
-        private String stringData() {
-            return new String(getData());
+    private void startReactors() throws IOException {
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; ++i) {
+            reactors[i] = new Reactor(threadPool, scheduling, bufferPool, admission, stats, cache, config, capture);
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
         }
+    }
 
-        @Override
-        public void run() {
-            String data = stringData();
-            data = data.substring(0, data.length() - 4);
-            InputProcessor inputProcessor = new InputProcessor(data);
+    private void acceptLoop() throws IOException {
+        while (serverSocketChannel.isOpen()) {
+            SocketChannel socketChannel = null;
             try {
-                output = inputProcessor.getResponse();
-                readyWokers.add(this);
+                socketChannel = serverSocketChannel.accept();
+                nextReactor().register(socketChannel);
             } catch (IOException e) {
-                System.err.println("failed create json " + e.getMessage());
+                ACCEPT_FAILED.log(e.getMessage());
+                if (socketChannel != null) {
+                    socketChannel.close();
+                }
             }
         }
+    }
 
-        public ByteBuffer getOutput() {
-            return output;
+    /**
+     * Least loaded reactor, ties are broken round-robin.
+     */
+    private Reactor nextReactor() {
+        Reactor best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < reactors.length; ++i) {
+            Reactor reactor = reactors[(nextReactor + i) % reactors.length];
+            int load = reactor.getConnections();
+            if (load < bestLoad) {
+                best = reactor;
+                bestLoad = load;
+            }
         }
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return best;
     }
 }
-
-
-   
@@ -0,0 +1,115 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Listening and socket settings of the servers, set from command line options by field name.
+ * With more than one listener the NIO server opens that many sockets on the port with SO_REUSEPORT,
+ * each served by a reactor and a worker pool of its own, so the kernel spreads new connections
+ * over them and there is no shared accept loop. A buffer size or backlog of 0 keeps the system default.
+ */
+public class ServerConfig {
+    public int port = 1234;
+    public int reactors = 0;
+    public int listeners = 1;
+    public int workers = 8;
+    public boolean tcpNoDelay = false;
+    public int sendBufferSize = 0;
+    public int receiveBufferSize = 0;
+    public int backlog = 0;
+
+    /**
+     * Sets a field by its name, used for command line options.
+     *
+     * @return false if there is no such setting
+     */
+    public boolean set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "reactors":
+                reactors = Integer.parseInt(value);
+                break;
+            case "listeners":
+                listeners = Integer.parseInt(value);
+                break;
+            case "workers":
+                workers = Integer.parseInt(value);
+                break;
+            case "tcpNoDelay":
+                tcpNoDelay = Boolean.parseBoolean(value);
+                break;
+            case "sendBufferSize":
+                sendBufferSize = Integer.parseInt(value);
+                break;
+            case "receiveBufferSize":
+                receiveBufferSize = Integer.parseInt(value);
+                break;
+            case "backlog":
+                backlog = Integer.parseInt(value);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens a socket listening on {@link #port}, shared with the other listeners through SO_REUSEPORT
+     * if there are several. The receive buffer is set before binding so accepted sockets inherit it.
+     */
+    public ServerSocketChannel openListener() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            setListenerOptions(channel);
+            channel.bind(new InetSocketAddress(port), backlog);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Opens an asynchronous socket listening on {@link #port} with the same settings, its operations complete on the group.
+     */
+    public AsynchronousServerSocketChannel openListener(AsynchronousChannelGroup group) throws IOException {
+        AsynchronousServerSocketChannel channel = AsynchronousServerSocketChannel.open(group);
+        try {
+            setListenerOptions(channel);
+            channel.bind(new InetSocketAddress(port), backlog);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void setListenerOptions(NetworkChannel channel) throws IOException {
+        if (listeners > 1) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * Applies the per connection settings to an accepted socket.
+     */
+    public void configure(NetworkChannel channel) throws IOException {
+        if (tcpNoDelay) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+    }
+}
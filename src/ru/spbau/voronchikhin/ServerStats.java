@@ -0,0 +1,248 @@
+package ru.spbau.voronchikhin;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and per-stage latency histograms of a server, all in nanoseconds.
+ * Stages follow a request: frame assembly on the reactor, wait in the thread pool queue,
+ * processing, wait for the reactor to pick up the result and flushing it to the socket.
+ */
+public class ServerStats implements ServerStatsMXBean {
+    private static final AsyncLog.Topic REGISTRATION_FAILED = AsyncLog.topic("failed to register stats ");
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    public final Histogram read = new Histogram();
+    public final Histogram queue = new Histogram();
+    public final Histogram process = new Histogram();
+    public final Histogram handoff = new Histogram();
+    public final Histogram write = new Histogram();
+
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder inlineRequests = new LongAdder();
+    private final LongAdder offloadedRequests = new LongAdder();
+
+    private BufferPool pool;
+    private AdmissionControl admission;
+    private ResponseCache cache;
+    private List<Backend> backends;
+    private TraceWriter capture;
+
+    /**
+     * Adds buffer pool and admission counters to the report.
+     */
+    public void watch(BufferPool pool, AdmissionControl admission) {
+        this.pool = pool;
+        this.admission = admission;
+    }
+
+    /**
+     * Adds response cache counters to the report.
+     */
+    public void watch(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Adds traffic capture counters to the report.
+     */
+    public void watch(TraceWriter capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Adds a line per backend of a {@link Balancer} to the report.
+     */
+    void watch(List<Backend> backends) {
+        this.backends = backends;
+    }
+
+    public void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("ru.spbau.voronchikhin:type=ServerStats,name=" + name));
+        } catch (JMException e) {
+            REGISTRATION_FAILED.log(e.getMessage());
+        }
+    }
+
+    void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void bytesRead(long count) {
+        bytesIn.add(count);
+    }
+
+    void bytesWritten(long count) {
+        bytesOut.add(count);
+    }
+
+    void request() {
+        requests.increment();
+    }
+
+    void failure() {
+        failures.increment();
+    }
+
+    void inlined() {
+        inlineRequests.increment();
+    }
+
+    void offloaded() {
+        offloadedRequests.increment();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getInlineRequests() {
+        return inlineRequests.sum();
+    }
+
+    @Override
+    public long getOffloadedRequests() {
+        return offloadedRequests.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        String[] names = stageNames();
+        Histogram[] stages = stages();
+        for (int i = 0; i < stages.length; ++i) {
+            for (int j = 0; j < PERCENTILES.length; ++j) {
+                result.put(names[i] + "." + PERCENTILE_NAMES[j], stages[i].getValueAtPercentile(PERCENTILES[j]) / 1000);
+            }
+            result.put(names[i] + ".max", stages[i].getMax() / 1000);
+        }
+        return result;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("connections ").append(getActiveConnections())
+                .append(" accepted ").append(getAcceptedConnections()).append('\n');
+        report.append("threads ").append(ManagementFactory.getThreadMXBean().getThreadCount())
+                .append(" peak ").append(ManagementFactory.getThreadMXBean().getPeakThreadCount()).append('\n');
+        report.append("requests ").append(getRequests()).append(" failures ").append(getFailures()).append('\n');
+        report.append("bytes in ").append(getBytesIn()).append(" out ").append(getBytesOut()).append('\n');
+        report.append("scheduling inline ").append(getInlineRequests())
+                .append(" offloaded ").append(getOffloadedRequests()).append('\n');
+        if (pool != null) {
+            report.append("buffers hits ").append(pool.getHits()).append(" misses ").append(pool.getMisses())
+                    .append(" outstanding ").append(pool.getOutstanding()).append('\n');
+        }
+        if (admission != null) {
+            report.append("admission in-flight ").append(admission.getInFlight())
+                    .append(" oversized ").append(admission.getOversizedFrames())
+                    .append(" spilled ").append(admission.getSpilledFrames())
+                    .append(" overloaded ").append(admission.getOverloaded())
+                    .append(" in-flight pauses ").append(admission.getInFlightPauses())
+                    .append(" output pauses ").append(admission.getOutputPauses()).append('\n');
+            report.append("timeouts idle ").append(admission.getIdleTimeouts())
+                    .append(" read ").append(admission.getReadTimeouts())
+                    .append(" write ").append(admission.getWriteTimeouts()).append('\n');
+        }
+        if (cache != null) {
+            report.append("cache hits ").append(cache.getHits()).append(" misses ").append(cache.getMisses())
+                    .append(String.format(" ratio %.3f", cache.getHitRatio()))
+                    .append(" evictions ").append(cache.getEvictions())
+                    .append(" bytes ").append(cache.getBytes()).append('\n');
+        }
+        if (capture != null) {
+            report.append("capture records ").append(capture.getRecords())
+                    .append(" bytes ").append(capture.getBytes())
+                    .append(" dropped ").append(capture.getDropped()).append('\n');
+        }
+        if (backends != null) {
+            for (Backend backend : backends) {
+                report.append("backend ").append(backend).append(backend.healthy ? " up" : " ejected")
+                        .append(" outstanding ").append(backend.outstanding)
+                        .append(" latency ").append(backend.latencyNanos / 1000).append(" us")
+                        .append(" forwarded ").append(backend.forwarded)
+                        .append(" ejections ").append(backend.ejections).append('\n');
+            }
+        }
+        report.append("log dropped ").append(AsyncLog.getDropped())
+                .append(" suppressed ").append(AsyncLog.getSuppressed()).append('\n');
+        report.append("stage count mean");
+        for (String name : PERCENTILE_NAMES) {
+            report.append(' ').append(name);
+        }
+        report.append(" max (us)\n");
+        String[] names = stageNames();
+        Histogram[] stages = stages();
+        for (int i = 0; i < stages.length; ++i) {
+            Histogram stage = stages[i];
+            report.append(names[i]).append(' ').append(stage.getCount())
+                    .append(' ').append((long) stage.getMean() / 1000);
+            for (double percentile : PERCENTILES) {
+                report.append(' ').append(stage.getValueAtPercentile(percentile) / 1000);
+            }
+            report.append(' ').append(stage.getMax() / 1000).append('\n');
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram stage : stages()) {
+            stage.reset();
+        }
+    }
+
+    private Histogram[] stages() {
+        return new Histogram[]{read, queue, process, handoff, write};
+    }
+
+    private static String[] stageNames() {
+        return new String[]{"read", "queue", "process", "handoff", "write"};
+    }
+}
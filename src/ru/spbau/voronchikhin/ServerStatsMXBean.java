@@ -0,0 +1,33 @@
+package ru.spbau.voronchikhin;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServerStats}.
+ */
+public interface ServerStatsMXBean {
+    long getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getRequests();
+
+    long getFailures();
+
+    long getInlineRequests();
+
+    long getOffloadedRequests();
+
+    /**
+     * @return "stage.p50" style keys to latency in microseconds
+     */
+    Map<String, Long> getLatencyMicros();
+
+    String getReport();
+
+    void reset();
+}
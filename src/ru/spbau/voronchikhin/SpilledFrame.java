@@ -0,0 +1,80 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Request frame too big to keep in memory, streamed into a temporary file by {@link FrameDecoder}.
+ * For the binary protocol the file holds only the payload, the opcode is kept aside.
+ * The file is deleted when it is closed, whoever ends up owning it has to close it
+ * or take the file over with {@link #takeFile}.
+ */
+final class SpilledFrame {
+    private static final AsyncLog.Topic DROP_FAILED = AsyncLog.topic("failed to drop spilled frame ");
+    public final boolean binary;
+    public final byte opcode;
+    private FileChannel file;
+    private long size = 0;
+
+    private SpilledFrame(FileChannel file, boolean binary, byte opcode) {
+        this.file = file;
+        this.binary = binary;
+        this.opcode = opcode;
+    }
+
+    public static SpilledFrame create(boolean binary, byte opcode) throws IOException {
+        return new SpilledFrame(openTemporary(), binary, opcode);
+    }
+
+    /**
+     * @return channel of a new temporary file that is deleted once the channel is closed
+     */
+    static FileChannel openTemporary() throws IOException {
+        Path path = Files.createTempFile("spill", ".frame");
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public void append(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            size += file.write(bytes);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public FileChannel getFile() {
+        return file;
+    }
+
+    /**
+     * Hands the file over to the caller, closing the frame does not touch it any more.
+     */
+    public FileChannel takeFile() {
+        FileChannel taken = file;
+        file = null;
+        return taken;
+    }
+
+    public MappedByteBuffer map(FileChannel.MapMode mode) throws IOException {
+        return file.map(mode, 0, size);
+    }
+
+    public void close() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            DROP_FAILED.log(e.getMessage());
+        }
+    }
+}
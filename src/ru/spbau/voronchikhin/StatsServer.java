@@ -0,0 +1,46 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the plain text stats report to every connection on its port and closes it,
+ * e.g. {@code nc localhost 1235}.
+ */
+public class StatsServer implements Runnable {
+    private static final AsyncLog.Topic SEND_FAILED = AsyncLog.topic("failed to send stats ");
+    private static final AsyncLog.Topic SERVER_FAILED = AsyncLog.topic("stats server failed ");
+    private final int port;
+    private final ServerStatsMXBean stats;
+
+    public StatsServer(int port, ServerStatsMXBean stats) {
+        this.port = port;
+        this.stats = stats;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "stats-" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                try (Socket socket = serverSocket.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(stats.getReport().getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException e) {
+                    SEND_FAILED.log(e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            SERVER_FAILED.log(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.spbau.voronchikhin;
+
+/**
+ * Hashed timing wheel owned by one reactor thread, not thread safe.
+ * Time is cut into ticks and a timer is linked into the slot of the tick its deadline falls into,
+ * so scheduling and cancelling are O(1) and a tick only looks at the timers of its slot.
+ * Timers more than a revolution away stay in their slot until a pass finds them due.
+ */
+class TimingWheel {
+    /**
+     * Wheel entry, meant to be extended by the object that times out so it costs no extra allocation.
+     */
+    abstract static class Timer {
+        private Timer prev;
+        private Timer next;
+        private long deadline;
+        private int slot = -1;
+
+        /**
+         * Called by {@link #advance} once the deadline has passed, the timer is no longer scheduled.
+         */
+        abstract void expire(long now);
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final Timer[] slots;
+    private final long tickNanos;
+    private final long origin;
+    private long tick = 0;
+    private int size = 0;
+
+    public TimingWheel(int slotCount, long tickNanos, long now) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slot count must be a power of two");
+        }
+        this.slots = new Timer[slotCount];
+        this.tickNanos = tickNanos;
+        this.origin = now;
+    }
+
+    /**
+     * Schedules or reschedules the timer, a deadline in the past expires on the next tick.
+     */
+    public void schedule(Timer timer, long deadline) {
+        cancel(timer);
+        long target = Math.max((Math.max(deadline - origin, 0) + tickNanos - 1) / tickNanos, tick + 1);
+        int slot = (int) target & (slots.length - 1);
+        timer.deadline = deadline;
+        timer.slot = slot;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        ++size;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = timer.next = null;
+        timer.slot = -1;
+        --size;
+    }
+
+    /**
+     * Expires the due timers of every tick that has passed by {@code now}.
+     */
+    public void advance(long now) {
+        final long last = (now - origin) / tickNanos;
+        while (tick < last && size > 0) {
+            ++tick;
+            Timer timer = slots[(int) tick & (slots.length - 1)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= now) {
+                    cancel(timer);
+                    timer.expire(now);
+                }
+                timer = next;
+            }
+        }
+        tick = Math.max(tick, last);
+    }
+
+    /**
+     * @return milliseconds a select may block before the next tick, 0 if nothing is scheduled
+     */
+    public long millisToNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long nanos = tickNanos - (now - origin) % tickNanos;
+        return Math.max(1, (nanos + 999999) / 1000000);
+    }
+}
@@ -0,0 +1,84 @@
+package ru.spbau.voronchikhin;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the records of a trace written by {@link TraceWriter} in order.
+ */
+public final class TraceReader implements Closeable {
+    private final DataInputStream in;
+    private final long startMillis;
+    private boolean finished = false;
+
+    /**
+     * One captured frame.
+     */
+    public static final class Record {
+        public final boolean binary;
+        public final long nanos;
+        public final long connection;
+        public final byte[] frame;
+
+        Record(boolean binary, long nanos, long connection, byte[] frame) {
+            this.binary = binary;
+            this.nanos = nanos;
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    public TraceReader(Path path) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        try {
+            if (in.readInt() != TraceWriter.MAGIC) {
+                throw new IOException("not a trace file " + path);
+            }
+            startMillis = in.readLong();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return wall clock time of the capture start in milliseconds
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return next record or null at the end of the trace
+     */
+    public Record next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        int kind;
+        try {
+            kind = in.readByte();
+        } catch (EOFException e) {
+            kind = 0;
+        }
+        if (kind != TraceWriter.TEXT && kind != TraceWriter.BINARY) {
+            finished = true;
+            return null;
+        }
+        long nanos = in.readLong();
+        long connection = in.readLong();
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        return new Record(kind == TraceWriter.BINARY, nanos, connection, frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
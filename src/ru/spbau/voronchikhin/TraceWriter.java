@@ -0,0 +1,188 @@
+package ru.spbau.voronchikhin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures the incoming frames of a server into a trace file that {@link TraceReader} reads back.
+ * The serving threads only copy a frame into a queue, a background thread appends the queued frames
+ * to the file through a mapped window that moves on as it fills up. Frames that would take the queue
+ * over its byte budget are dropped and counted, so a slow disk never holds up the server.
+ * <p>
+ * The file starts with {@link #MAGIC} and the wall clock time of the capture start in milliseconds.
+ * Every record is a kind byte, {@link #TEXT} or {@link #BINARY}, the nanoseconds since the start,
+ * the connection id, the frame length and the frame as the decoder handed it out: text without
+ * the delimiter, binary as opcode and payload. A zero kind byte ends the trace, the window
+ * past the last record is zero filled and the file is cut to its length on {@link #close}.
+ */
+public final class TraceWriter implements Closeable {
+    private static final AsyncLog.Topic WRITE_FAILED = AsyncLog.topic("failed to write the trace ");
+    public static final int MAGIC = 0x54524331;
+    public static final byte TEXT = 1;
+    public static final byte BINARY = 2;
+    static final int HEADER_SIZE = 12;
+    static final int RECORD_HEADER_SIZE = 21;
+    private static final int WINDOW = 64 << 20;
+    private static final long MAX_PENDING_BYTES = 64 << 20;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final FileChannel file;
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long position = 0;
+
+    private static final class Record {
+        final byte kind;
+        final long nanos;
+        final long connection;
+        final byte[] frame;
+
+        Record(byte kind, long nanos, long connection, byte[] frame) {
+            this.kind = kind;
+            this.nanos = nanos;
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    private TraceWriter(FileChannel file) throws IOException {
+        this.file = file;
+        ensure(HEADER_SIZE);
+        window.putInt(MAGIC).putLong(System.currentTimeMillis());
+        position = HEADER_SIZE;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    if (!drain()) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                }
+            }
+        }, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates the trace file or overwrites an existing one.
+     */
+    public static TraceWriter open(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new TraceWriter(file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a copy of the frame, may be called from any thread. The frame is not consumed.
+     */
+    public void capture(long connection, boolean binary, ByteBuffer frame) {
+        int length = frame.remaining();
+        if (closed || pendingBytes.addAndGet(length) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-length);
+            dropped.increment();
+            return;
+        }
+        byte[] copy = new byte[length];
+        frame.duplicate().get(copy);
+        queue.add(new Record(binary ? BINARY : TEXT, System.nanoTime() - startNanos, connection, copy));
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes what is queued, stops the writer thread and cuts the file to the records written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+        window.force();
+        window = null;
+        try {
+            file.truncate(position);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return false if the queue was empty
+     */
+    private synchronized boolean drain() {
+        if (window == null) {
+            return false;
+        }
+        boolean wrote = false;
+        Record record;
+        while ((record = queue.poll()) != null) {
+            int length = record.frame.length;
+            pendingBytes.addAndGet(-length);
+            try {
+                ensure(RECORD_HEADER_SIZE + length);
+            } catch (IOException e) {
+                WRITE_FAILED.log(e.getMessage());
+                dropped.increment();
+                continue;
+            }
+            window.put(record.kind).putLong(record.nanos).putLong(record.connection).putInt(length).put(record.frame);
+            position += RECORD_HEADER_SIZE + length;
+            records.increment();
+            bytes.add(length);
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    /**
+     * Moves the mapped window to the write position if the current one has less than {@code size} bytes left.
+     */
+    private void ensure(int size) throws IOException {
+        if (window != null && position + size <= windowStart + window.capacity()) {
+            return;
+        }
+        window = file.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW, size));
+        windowStart = position;
+    }
+}
@@ -0,0 +1,138 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the response for one request frame on the thread pool,
+ * the frame is either in a pooled buffer or spilled to a file.
+ */
+class Worker implements Runnable {
+    private static final AsyncLog.Topic RESPONSE_FAILED = AsyncLog.topic("failed create json ");
+    private static final AsyncLog.Topic SPILLED_RESPONSE_FAILED = AsyncLog.topic("failed to process spilled frame ");
+    private final ByteBuffer frame;
+    private final SpilledFrame spilled;
+    private final int frameSize;
+    private final boolean binary;
+    public final Connection connection;
+    private Object output;
+    long sequence;
+    long dispatchedAt;
+    long completedAt;
+    Worker next;
+
+    public Worker(Connection connection, ByteBuffer frame) {
+        this.connection = connection;
+        this.frame = frame;
+        this.spilled = null;
+        this.frameSize = frame.remaining();
+        this.binary = connection.decoder.isBinary();
+    }
+
+    public Worker(Connection connection, SpilledFrame spilled) {
+        this.connection = connection;
+        this.frame = null;
+        this.spilled = spilled;
+        this.frameSize = 0;
+        this.binary = spilled.binary;
+    }
+
+    @Override
+    public void run() {
+        final Reactor reactor = connection.reactor;
+        final long startedAt = System.nanoTime();
+        reactor.stats.queue.record(startedAt - dispatchedAt);
+        RequestEvents.Process event = new RequestEvents.Process();
+        event.begin();
+        try {
+            output = spilled != null ? respond(spilled, reactor.pool, reactor.stats)
+                    : respond(frame, binary, reactor.pool, reactor.stats, reactor.cache);
+        } finally {
+            if (output == null) {
+                // an error escaped, the request still has to leave its slot and the reorder buffer
+                reactor.stats.failure();
+                output = binary ? BinaryCodec.failure() : JsonCodec.failure();
+                completedAt = System.nanoTime();
+                reactor.complete(this);
+            }
+        }
+        completedAt = System.nanoTime();
+        reactor.stats.process.record(completedAt - startedAt);
+        if (event.shouldCommit()) {
+            event.connection = connection.id;
+            event.sequence = sequence;
+            event.size = size();
+            event.queueTime = startedAt - dispatchedAt;
+            event.commit();
+        }
+        if (spilled == null) {
+            reactor.scheduling.processed(frameSize, completedAt - startedAt);
+        }
+        reactor.complete(this);
+    }
+
+    /**
+     * Computes the response for a frame of either protocol and releases the frame,
+     * a failure of any kind is answered with the failure response.
+     *
+     * @param cache responses of repeated frames, may be null
+     */
+    static ByteBuffer respond(ByteBuffer frame, boolean binary, BufferPool pool, ServerStats stats, ResponseCache cache) {
+        try {
+            return respond(frame, binary, pool, cache);
+        } catch (IOException | RuntimeException e) {
+            RESPONSE_FAILED.log(e.getMessage());
+            stats.failure();
+            return binary ? BinaryCodec.failure() : JsonCodec.failure();
+        } finally {
+            pool.release(frame);
+        }
+    }
+
+    /**
+     * Takes the response from the cache or computes and caches it, the frame is left to the caller.
+     */
+    static ByteBuffer respond(ByteBuffer frame, boolean binary, BufferPool pool, ResponseCache cache) throws IOException {
+        ByteBuffer response = cache != null ? cache.get(frame, binary) : null;
+        if (response != null) {
+            return response;
+        }
+        response = binary ? BinaryCodec.respond(frame, pool) : InputProcessor.respond(frame, pool);
+        if (cache != null) {
+            cache.put(frame, binary, response);
+        }
+        return response;
+    }
+
+    /**
+     * Computes the response for a spilled frame and closes the frame,
+     * a failure of any kind is answered with the failure response.
+     *
+     * @return a {@link ByteBuffer} or a {@link FileRegion}
+     */
+    static Object respond(SpilledFrame frame, BufferPool pool, ServerStats stats) {
+        try {
+            return frame.binary ? BinaryCodec.respond(frame, pool) : InputProcessor.respond(frame);
+        } catch (IOException | RuntimeException e) {
+            SPILLED_RESPONSE_FAILED.log(e.getMessage());
+            stats.failure();
+            return frame.binary ? BinaryCodec.failure() : JsonCodec.failure();
+        } finally {
+            frame.close();
+        }
+    }
+
+    /**
+     * @return size of the request frame
+     */
+    long size() {
+        return spilled != null ? spilled.size() : frameSize;
+    }
+
+    /**
+     * @return a {@link ByteBuffer} or a {@link FileRegion}
+     */
+    public Object getOutput() {
+        return output;
+    }
+}
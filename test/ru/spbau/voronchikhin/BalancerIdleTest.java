@@ -0,0 +1,71 @@
+package ru.spbau.voronchikhin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lets the backends evict the idle connections of a balancer and expects the balancer to keep
+ * answering instead of taking the backends out of routing. The balancer retires its own idle
+ * connections earlier, as it should be configured, so no request races an eviction.
+ */
+public class BalancerIdleTest {
+    private static final int IDLE_TIMEOUT_MILLIS = 300;
+    private static final int CONNECTIONS = 4;
+    private static final int REQUESTS = 100;
+    private static final int ROUNDS = 3;
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int first = TestSupport.freePort();
+        int second = TestSupport.freePort();
+        int balancer = TestSupport.freePort();
+        String idle = "idleTimeoutMillis=" + IDLE_TIMEOUT_MILLIS;
+        TestSupport.start(first, String.valueOf(first), "0", "nio", idle);
+        TestSupport.start(second, String.valueOf(second), "0", "nio", idle);
+        TestSupport.start(balancer, String.valueOf(balancer), "0", "balancer", "backends=" + first + "," + second, "maxInFlightPerClient=4",
+                "idleConnectionMillis=" + IDLE_TIMEOUT_MILLIS / 2);
+        for (int round = 0; round < ROUNDS; ++round) {
+            Thread[] clients = new Thread[CONNECTIONS];
+            for (int i = 0; i < CONNECTIONS; ++i) {
+                clients[i] = new Thread(client(balancer, round + "-" + i));
+                clients[i].start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+            // long enough for every backend connection of the balancer to be evicted
+            Thread.sleep(IDLE_TIMEOUT_MILLIS * 4);
+        }
+        TestSupport.finish("BalancerIdleTest");
+    }
+
+    private static Runnable client(final int port, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setSoTimeout(TIMEOUT_MILLIS);
+                    StringBuilder requests = new StringBuilder();
+                    for (int i = 0; i < REQUESTS; ++i) {
+                        requests.append(TestSupport.request(name + "x" + i));
+                    }
+                    OutputStream output = socket.getOutputStream();
+                    output.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+                    output.flush();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    for (int i = 0; i < REQUESTS; ++i) {
+                        String response = reader.readLine();
+                        TestSupport.check(TestSupport.response(name + "x" + i).equals(response),
+                                "connection " + name + " response " + i + " was " + response);
+                    }
+                } catch (IOException e) {
+                    TestSupport.check(false, "connection " + name + " " + e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,65 @@
+package ru.spbau.voronchikhin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pipelines more requests than {@link BalancerConfig#maxInFlightPerClient} on every connection
+ * through a balancer with two backends and expects every response back in order.
+ */
+public class BalancerPipelineTest {
+    private static final int CONNECTIONS = 8;
+    private static final int REQUESTS = 300;
+    private static final int ROUNDS = 10;
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int first = TestSupport.freePort();
+        int second = TestSupport.freePort();
+        int balancer = TestSupport.freePort();
+        TestSupport.start(first, String.valueOf(first), "0", "nio");
+        TestSupport.start(second, String.valueOf(second), "0", "nio");
+        TestSupport.start(balancer, String.valueOf(balancer), "0", "balancer", "backends=" + first + "," + second, "maxInFlightPerClient=4");
+        for (int round = 0; round < ROUNDS; ++round) {
+            Thread[] clients = new Thread[CONNECTIONS];
+            for (int i = 0; i < CONNECTIONS; ++i) {
+                clients[i] = new Thread(client(balancer, round + "-" + i));
+                clients[i].start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+        }
+        TestSupport.finish("BalancerPipelineTest");
+    }
+
+    private static Runnable client(final int port, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setSoTimeout(TIMEOUT_MILLIS);
+                    StringBuilder requests = new StringBuilder();
+                    for (int i = 0; i < REQUESTS; ++i) {
+                        requests.append(TestSupport.request(name + "x" + i));
+                    }
+                    OutputStream output = socket.getOutputStream();
+                    output.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+                    output.flush();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    for (int i = 0; i < REQUESTS; ++i) {
+                        String response = reader.readLine();
+                        TestSupport.check(TestSupport.response(name + "x" + i).equals(response),
+                                "connection " + name + " response " + i + " was " + response);
+                    }
+                } catch (IOException e) {
+                    TestSupport.check(false, "connection " + name + " " + e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package ru.spbau.voronchikhin;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Sends requests longer than a low {@link ParallelReverse} byte threshold, so {@link JsonCodec} reverses them
+ * window by window in parallel, both from memory and from a spilled frame. The data mixes multi-byte
+ * characters, surrogate pairs and characters that are escaped, to catch windows cut inside a code point.
+ */
+public class ParallelReverseTest {
+    private static final String[] PIECES = {"a", "b", "7", "\u043f", "\u00e9", "\ud83d\ude00", "\ud801\udc37",
+            "/", "\"", "\\", "\n", "\t", "\u0001", "\u2028", "\u00ff"};
+
+    public static void main(String[] args) throws Exception {
+        int port = TestSupport.freePort();
+        TestSupport.start(port, String.valueOf(port), "0", "nio", "reverseByteThreshold=4096", "spillThreshold=262144");
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(30000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream output = socket.getOutputStream();
+            Random random = new Random(17);
+            check(reader, output, "short", "abc\ud83d\ude00");
+            check(reader, output, "ascii in memory", ascii(random, 200000));
+            check(reader, output, "mixed in memory", mixed(random, 30000));
+            check(reader, output, "ascii spilled", ascii(random, 1000000));
+            check(reader, output, "mixed spilled", mixed(random, 200000));
+        }
+        TestSupport.finish("ParallelReverseTest");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void check(BufferedReader reader, OutputStream output, String name, String data) throws IOException {
+        JSONObject request = new JSONObject();
+        request.put("data", data);
+        output.write((request.toJSONString() + "endl").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        String expected = "{\"data\":\"" + JSONValue.escape(new StringBuilder(data).reverse().toString()) + "\",\"status\":true}";
+        String response = reader.readLine();
+        TestSupport.check(expected.equals(response), name + ": response of " + (response == null ? 0 : response.length())
+                + " chars differs from the expected " + expected.length());
+    }
+
+    /**
+     * @return letters up to 'k', the frame delimiter "endl" can not turn up
+     */
+    private static String ascii(Random random, int length) {
+        StringBuilder data = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            data.append((char) ('a' + random.nextInt(11)));
+        }
+        return data.toString();
+    }
+
+    private static String mixed(Random random, int pieces) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < pieces; ++i) {
+            data.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return data.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package ru.spbau.voronchikhin;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Starts servers in this JVM for the tests, every test is a main that exits with 1 when a check fails.
+ */
+final class TestSupport {
+    private static final long START_MILLIS = 10000;
+    private static int failures = 0;
+
+    private TestSupport() {
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Runs {@link Main} with the arguments on a daemon thread and waits until it accepts connections.
+     *
+     * @param port the port {@code args} make the server listen on
+     */
+    static void start(int port, final String... args) throws IOException, InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Main.main(args);
+            }
+        }, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + START_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static String request(String data) {
+        return "{\"data\":\"" + data + "\"}endl";
+    }
+
+    static String response(String data) {
+        return "{\"data\":\"" + new StringBuilder(data).reverse() + "\",\"status\":true}";
+    }
+
+    static synchronized void check(boolean condition, String message) {
+        if (!condition) {
+            ++failures;
+            System.out.println("FAILED " + message);
+        }
+    }
+
+    /**
+     * Prints the outcome and ends the process, the servers run until then.
+     */
+    static synchronized void finish(String test) {
+        System.out.println(test + (failures == 0 ? " OK" : " " + failures + " failures"));
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}